@@ -0,0 +1,78 @@
+package ch.ethz.matsim.run_tools.examples;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+
+import ch.ethz.matsim.run_tools.framework.run.LocalLinuxRunEnvironment;
+import ch.ethz.matsim.run_tools.framework.run.RunDescription;
+import ch.ethz.matsim.run_tools.framework.run.remote.RemoteNode;
+import ch.ethz.matsim.run_tools.framework.run.remote.RemoteRunEnvironment;
+import ch.ethz.matsim.run_tools.framework.run.remote.RunAgent;
+
+/**
+ * Runs two agents on localhost and distributes a couple of runs over them.
+ */
+public class ExampleRemoteRunEnvironment {
+	static public void main(String[] args) throws IOException, InterruptedException {
+		// The argument is a directory in which the coordinator and the two "hosts"
+		// get their own root directories. Each node root needs to contain the MATSim
+		// jar, just as for ExampleRunEnvironment.
+		File basePath = new File(args[0]);
+		List<RemoteNode> nodes = new LinkedList<>();
+		String secret = UUID.randomUUID().toString();
+
+		for (String name : Arrays.asList("node1", "node2")) {
+			File nodePath = new File(basePath, name);
+			nodePath.mkdirs();
+
+			// Usually, the agent is started on each host with
+			// java ... ch.ethz.matsim.run_tools.framework.run.remote.RunAgent [port] [root] [state] [secret file]
+			ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			RunAgent agent = new RunAgent(new LocalLinuxRunEnvironment("agent.json", nodePath), serverSocket,
+					secret);
+
+			Thread thread = new Thread(agent::run);
+			thread.setDaemon(true);
+			thread.start();
+
+			RemoteNode node = new RemoteNode();
+			node.name = name;
+			node.port = serverSocket.getLocalPort();
+			node.secret = secret;
+			node.rootUri = nodePath.toURI().toString();
+			nodes.add(node);
+		}
+
+		File coordinatorPath = new File(basePath, "coordinator");
+		coordinatorPath.mkdirs();
+
+		RemoteRunEnvironment environment = new RemoteRunEnvironment("remote.json", coordinatorPath, nodes);
+
+		for (int i = 0; i < 4; i++) {
+			String id = "remote" + i;
+
+			if (!environment.exists(id)) {
+				RunDescription description = new RunDescription();
+				description.classPath = Arrays.asList("matsim-0.9.0/libs/*", "matsim-0.9.0/matsim-0.9.0.jar");
+				description.entryPoint = "org.matsim.run.Controler";
+				description.arguments = Arrays.asList("../matsim-0.9.0/examples/equil/config.xml");
+
+				environment.setup(id, description);
+				environment.start(id);
+			}
+		}
+
+		while (environment.getAvailableIds().stream().anyMatch(environment::isRunning)) {
+			System.out.println("Statuses: " + environment.getStatuses(environment.getAvailableIds()));
+			Thread.sleep(1000);
+		}
+
+		System.out.println("All simulations have stopped.");
+	}
+}
@@ -1,18 +1,21 @@
 package ch.ethz.matsim.run_tools.examples;
 
 import java.io.File;
-import java.io.OutputStreamWriter;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
+import org.apache.commons.vfs2.FileObject;
 import org.apache.commons.vfs2.FileSystemException;
 import org.matsim.core.config.Config;
-import org.matsim.core.config.ConfigReader;
-import org.matsim.core.config.ConfigUtils;
-import org.matsim.core.config.ConfigWriter;
-import org.matsim.core.utils.io.UncheckedIOException;
 
+import ch.ethz.matsim.run_tools.framework.run.CpuPlacement;
+import ch.ethz.matsim.run_tools.framework.run.DirectProcessSupervisor;
 import ch.ethz.matsim.run_tools.framework.run.LocalLinuxRunEnvironment;
 import ch.ethz.matsim.run_tools.framework.run.RunDescription;
+import ch.ethz.matsim.run_tools.framework.simulation.ConfigTemplate;
+import ch.ethz.matsim.run_tools.framework.simulation.ConfigTemplateCache;
+import ch.ethz.matsim.run_tools.framework.simulation.InputStore;
 import ch.ethz.matsim.run_tools.framework.simulation.SimulationConfigurator;
 import ch.ethz.matsim.run_tools.framework.simulation.SimulationDescription;
 import ch.ethz.matsim.run_tools.framework.simulation.SimulationEnvironment;
@@ -24,18 +27,26 @@ public class ExampleSimulationEnvironment {
 	static public void main(String[] args) throws InterruptedException {
 		String environmentPath = args[0];
 
+		// Runs are pinned to CPUs, which only this environment may do on the host
 		LocalLinuxRunEnvironment runEnvironment = new LocalLinuxRunEnvironment("run_example.json",
-				new File(environmentPath));
+				new File(environmentPath), new DirectProcessSupervisor(), CpuPlacement.detect());
 
 		RunDescription runDescriptionTemplate = new RunDescription();
 		runDescriptionTemplate.classPath = Arrays.asList("matsim-0.9.0/libs/*", "matsim-0.9.0/matsim-0.9.0.jar");
 		runDescriptionTemplate.entryPoint = "org.matsim.run.Controler";
 		runDescriptionTemplate.arguments = Arrays.asList("config.xml");
 
-		SimulationConfigurator configurator = new ExampleSimulationConfigurator();
+		// The run is pinned to two CPUs, so MATSim should not use more threads
+		runDescriptionTemplate.cores = 2;
+
+		SimulationConfigurator configurator = new ExampleSimulationConfigurator(runDescriptionTemplate.cores);
+
+		// Network, population and facilities are linked into the run directory from a
+		// shared store instead of being copied for every simulation
+		InputStore inputStore = new InputStore(new File(environmentPath, "inputs"));
 
 		SimulationEnvironment simulationEnvironment = new SimulationEnvironment(runDescriptionTemplate, runEnvironment,
-				configurator);
+				configurator, inputStore);
 
 		SimulationHandle handle = null;
 
@@ -72,6 +83,15 @@ public class ExampleSimulationEnvironment {
 	}
 
 	static public class ExampleSimulationConfigurator implements SimulationConfigurator {
+		final private int numberOfThreads;
+
+		// The base config is parsed once, all simulations start from copies
+		final private ConfigTemplateCache templateCache = new ConfigTemplateCache();
+
+		public ExampleSimulationConfigurator(int numberOfThreads) {
+			this.numberOfThreads = numberOfThreads;
+		}
+
 		@Override
 		public void configureRunner(String id, SimulationDescription description, RunDescription runDescription) {
 		}
@@ -79,21 +99,26 @@ public class ExampleSimulationEnvironment {
 		@Override
 		public void configureSimulation(String id, SimulationDescription description, SimulationHandle handle) {
 			try {
-				Config config = ConfigUtils.createConfig();
+				FileObject inputDirectory = handle.getDirectory().resolveFile("../matsim-0.9.0/examples/equil");
+				handle.addInput(inputDirectory.resolveFile("network.xml"), "network.xml");
+				handle.addInput(inputDirectory.resolveFile("plans100.xml"), "plans.xml");
+				handle.addInput(inputDirectory.resolveFile("facilities.xml"), "facilities.xml");
 
-				new ConfigReader(config).parse(
-						handle.getDirectory().resolveFile("../matsim-0.9.0/examples/equil/config.xml").getContent().getInputStream());
+				Map<String, String> overrides = new HashMap<>();
+				overrides.put("network/inputNetworkFile", "network.xml");
+				overrides.put("plans/inputPlansFile", "plans.xml");
+				overrides.put("facilities/inputFacilitiesFile", "facilities.xml");
+				overrides.put("global/numberOfThreads", String.valueOf(numberOfThreads));
+				overrides.put("qsim/numberOfThreads", String.valueOf(numberOfThreads));
 
-				config.network().setInputFile("../matsim-0.9.0/examples/equil/network.xml");
-				config.plans().setInputFile("../matsim-0.9.0/examples/equil/plans100.xml");
-				config.facilities().setInputFile("../matsim-0.9.0/examples/equil/facilities.xml");
+				ConfigTemplate template = templateCache.get(inputDirectory.resolveFile("config.xml"));
+				Config config = template.create(overrides);
 
 				ExampleSimulationDescription simulationDescription = (ExampleSimulationDescription) description;
 				config.planCalcScore().getModes().get("car").setConstant(simulationDescription.alphaCar);
 
-				new ConfigWriter(config).writeStream(new OutputStreamWriter(
-						handle.getDirectory().resolveFile("config.xml").getContent().getOutputStream()));
-			} catch (UncheckedIOException | FileSystemException e) {
+				ConfigTemplate.write(config, handle.getDirectory().resolveFile("config.xml"));
+			} catch (FileSystemException e) {
 				throw new RuntimeException(e);
 			}
 		}
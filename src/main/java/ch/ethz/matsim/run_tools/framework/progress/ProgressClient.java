@@ -0,0 +1,140 @@
+package ch.ethz.matsim.run_tools.framework.progress;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Receives the events of a ProgressServer in a simulation on the same host and
+ * hands them to the subscribers on a background thread. The client waits for
+ * the port file to appear and reconnects whenever the simulation is
+ * restarted, until it is closed.
+ */
+public class ProgressClient {
+	final private Logger logger = Logger.getLogger(ProgressClient.class);
+	final private ObjectMapper objectMapper = new ObjectMapper();
+
+	final private FileObject portFile;
+	final private long retryInterval;
+
+	final private List<Consumer<ProgressEvent>> subscribers = new CopyOnWriteArrayList<>();
+
+	private volatile boolean running = false;
+	private volatile Socket socket = null;
+	private Thread thread = null;
+
+	public ProgressClient(FileObject runDirectory, long retryInterval) {
+		try {
+			this.portFile = runDirectory.resolveFile(ProgressServer.PORT_FILE);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		this.retryInterval = retryInterval;
+	}
+
+	public ProgressClient(FileObject runDirectory) {
+		this(runDirectory, 500);
+	}
+
+	public void subscribe(Consumer<ProgressEvent> subscriber) {
+		subscribers.add(subscriber);
+	}
+
+	public void unsubscribe(Consumer<ProgressEvent> subscriber) {
+		subscribers.remove(subscriber);
+	}
+
+	synchronized public void start() {
+		if (!running) {
+			running = true;
+
+			thread = new Thread(this::run, "progress " + portFile.getName().getParent().getBaseName());
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	synchronized public void close() {
+		running = false;
+
+		try {
+			if (socket != null) {
+				socket.close();
+			}
+		} catch (IOException e) {
+		}
+
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	private Integer readPort() {
+		try {
+			portFile.refresh();
+
+			if (!portFile.exists()) {
+				return null;
+			}
+
+			try (InputStream inputStream = portFile.getContent().getInputStream()) {
+				return Integer.parseInt(IOUtils.toString(inputStream, StandardCharsets.US_ASCII).trim());
+			}
+		} catch (IOException | NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private void run() {
+		while (running) {
+			Integer port = readPort();
+
+			if (port != null) {
+				try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+					this.socket = socket;
+					BufferedReader reader = new BufferedReader(
+							new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+					String line = null;
+					while ((line = reader.readLine()) != null) {
+						dispatch(objectMapper.readValue(line, ProgressEvent.class));
+					}
+				} catch (IOException e) {
+					// The simulation is not listening (anymore), e.g. a stale port file
+				} finally {
+					this.socket = null;
+				}
+			}
+
+			try {
+				Thread.sleep(retryInterval);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private void dispatch(ProgressEvent event) {
+		for (Consumer<ProgressEvent> subscriber : subscribers) {
+			try {
+				subscriber.accept(event);
+			} catch (RuntimeException e) {
+				logger.error("Error in progress subscriber", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package ch.ethz.matsim.run_tools.framework.progress;
+
+/**
+ * Message sent from a running simulation to the driver. One event is one JSON
+ * object per line.
+ */
+public class ProgressEvent {
+	final public static String STARTUP = "startup";
+	final public static String ITERATION_STARTS = "iterationStarts";
+	final public static String ITERATION_ENDS = "iterationEnds";
+	final public static String METRIC = "metric";
+	final public static String SHUTDOWN = "shutdown";
+
+	public String type;
+	public int iteration = -1;
+	public long time;
+
+	// Only set for metrics
+	public String name = null;
+	public double value = Double.NaN;
+}
@@ -0,0 +1,15 @@
+package ch.ethz.matsim.run_tools.framework.progress;
+
+import org.matsim.core.controler.AbstractModule;
+
+/**
+ * Add this module to a MATSim controler to stream progress to the driver. Code
+ * in the simulation can inject ProgressServer to publish custom metrics.
+ */
+public class ProgressModule extends AbstractModule {
+	@Override
+	public void install() {
+		bind(ProgressServer.class).asEagerSingleton();
+		addControlerListenerBinding().to(ProgressServer.class);
+	}
+}
@@ -0,0 +1,220 @@
+package ch.ethz.matsim.run_tools.framework.progress;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Logger;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.events.IterationStartsEvent;
+import org.matsim.core.controler.events.ShutdownEvent;
+import org.matsim.core.controler.events.StartupEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.controler.listener.IterationStartsListener;
+import org.matsim.core.controler.listener.ShutdownListener;
+import org.matsim.core.controler.listener.StartupListener;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Singleton;
+
+/**
+ * Runs inside the simulation and pushes progress events to all connected
+ * drivers. The server listens on a loopback port, which is written to
+ * progress.port in the run directory (user.dir). A driver that connects late
+ * first receives the last iteration event.
+ *
+ * Events are queued and written by a separate thread, so a slow driver never
+ * blocks the simulation. If the queue is full, the oldest events are dropped.
+ */
+@Singleton
+public class ProgressServer implements StartupListener, IterationStartsListener, IterationEndsListener,
+		ShutdownListener {
+	final public static String PORT_FILE = "progress.port";
+
+	final private static int QUEUE_CAPACITY = 1000;
+	final private static long SHUTDOWN_TIMEOUT = 1000;
+
+	final private Logger logger = Logger.getLogger(ProgressServer.class);
+	final private ObjectMapper objectMapper = new ObjectMapper();
+
+	final private List<OutputStream> clients = new CopyOnWriteArrayList<>();
+	final private File portFile = new File(System.getProperty("user.dir"), PORT_FILE);
+	final private BlockingQueue<ProgressEvent> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+	private volatile ServerSocket serverSocket = null;
+	private volatile ProgressEvent lastIterationEvent = null;
+	private volatile int iteration = -1;
+	private Thread sender = null;
+
+	@Override
+	public void notifyStartup(StartupEvent event) {
+		try {
+			serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+			File temporaryFile = new File(portFile.getPath() + ".tmp");
+			Files.write(temporaryFile.toPath(), String.valueOf(serverSocket.getLocalPort()).getBytes());
+			Files.move(temporaryFile.toPath(), portFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			logger.error("Cannot open progress channel, continuing without", e);
+			return;
+		}
+
+		Thread thread = new Thread(this::accept, "progress");
+		thread.setDaemon(true);
+		thread.start();
+
+		sender = new Thread(this::send, "progress sender");
+		sender.setDaemon(true);
+		sender.start();
+
+		publish(createEvent(ProgressEvent.STARTUP));
+	}
+
+	private void accept() {
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+
+				ProgressEvent lastEvent = lastIterationEvent;
+
+				// A fresh connection has an empty buffer, so this does not block
+				if (lastEvent != null) {
+					send(socket.getOutputStream(), serialize(lastEvent));
+				}
+
+				clients.add(socket.getOutputStream());
+			} catch (IOException e) {
+				// The server socket has been closed or the client is gone already
+			}
+		}
+	}
+
+	private ProgressEvent createEvent(String type) {
+		ProgressEvent event = new ProgressEvent();
+		event.type = type;
+		event.iteration = iteration;
+		event.time = System.currentTimeMillis();
+		return event;
+	}
+
+	private byte[] serialize(ProgressEvent event) throws JsonProcessingException {
+		return objectMapper.writeValueAsBytes(event);
+	}
+
+	static private void send(OutputStream outputStream, byte[] message) throws IOException {
+		outputStream.write(message);
+		outputStream.write('\n');
+		outputStream.flush();
+	}
+
+	private void publish(ProgressEvent event) {
+		if (serverSocket == null) {
+			return;
+		}
+
+		while (!queue.offer(event)) {
+			queue.poll();
+		}
+	}
+
+	/**
+	 * Writes the queued events to all clients until the shutdown event has been
+	 * sent. Clients that cannot be written to anymore are dropped.
+	 */
+	private void send() {
+		while (true) {
+			ProgressEvent event;
+
+			try {
+				event = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			try {
+				byte[] message = serialize(event);
+
+				for (OutputStream client : clients) {
+					try {
+						send(client, message);
+					} catch (IOException e) {
+						clients.remove(client);
+					}
+				}
+			} catch (JsonProcessingException e) {
+				logger.error("Cannot serialize progress event", e);
+			}
+
+			if (ProgressEvent.SHUTDOWN.equals(event.type)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sends a custom value to the driver, e.g. a partial objective.
+	 */
+	public void publish(String name, double value) {
+		ProgressEvent event = createEvent(ProgressEvent.METRIC);
+		event.name = name;
+		event.value = value;
+		publish(event);
+	}
+
+	@Override
+	public void notifyIterationStarts(IterationStartsEvent event) {
+		iteration = event.getIteration();
+		publish(createEvent(ProgressEvent.ITERATION_STARTS));
+	}
+
+	@Override
+	public void notifyIterationEnds(IterationEndsEvent event) {
+		iteration = event.getIteration();
+		lastIterationEvent = createEvent(ProgressEvent.ITERATION_ENDS);
+		publish(lastIterationEvent);
+	}
+
+	@Override
+	public void notifyShutdown(ShutdownEvent event) {
+		publish(createEvent(ProgressEvent.SHUTDOWN));
+
+		if (sender != null) {
+			try {
+				// Give the sender a moment to deliver the remaining events
+				sender.join(SHUTDOWN_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if (serverSocket != null) {
+			try {
+				serverSocket.close();
+			} catch (IOException e) {
+			}
+
+			// Also releases a sender that is stuck writing to a client
+			for (OutputStream client : clients) {
+				try {
+					client.close();
+				} catch (IOException e) {
+				}
+			}
+
+			clients.clear();
+			portFile.delete();
+		}
+	}
+}
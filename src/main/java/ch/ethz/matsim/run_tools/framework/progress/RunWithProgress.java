@@ -0,0 +1,19 @@
+package ch.ethz.matsim.run_tools.framework.progress;
+
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.controler.Controler;
+
+/**
+ * Drop-in replacement for org.matsim.run.Controler as the entry point of a run,
+ * which adds the ProgressModule. Usage: RunWithProgress [config]
+ */
+public class RunWithProgress {
+	static public void main(String[] args) {
+		Config config = ConfigUtils.loadConfig(args[0]);
+
+		Controler controler = new Controler(config);
+		controler.addOverridingModule(new ProgressModule());
+		controler.run();
+	}
+}
@@ -0,0 +1,96 @@
+package ch.ethz.matsim.run_tools.framework.run;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.apache.commons.vfs2.FileObject;
+
+/**
+ * Wraps another RunEnvironment, typically one whose run directories are on a
+ * remote VFS file system, and serves getLocalCopy from a LocalFileCache. Reading
+ * outputs repeatedly, e.g. for objectives, then only transfers files that have
+ * changed. All other calls are passed on unchanged.
+ */
+public class CachingRunEnvironment implements RunEnvironment {
+	final private RunEnvironment delegate;
+	final private LocalFileCache cache;
+
+	public CachingRunEnvironment(RunEnvironment delegate, LocalFileCache cache) {
+		this.delegate = delegate;
+		this.cache = cache;
+	}
+
+	public LocalFileCache getCache() {
+		return cache;
+	}
+
+	@Override
+	public LocalCopy getLocalCopy(FileObject file) {
+		return cache.get(file);
+	}
+
+	@Override
+	public void start(String id) {
+		delegate.start(id);
+	}
+
+	@Override
+	public void stop(String id) {
+		delegate.stop(id);
+	}
+
+	@Override
+	public void setup(String id, RunDescription description) {
+		delegate.setup(id, description);
+	}
+
+	@Override
+	public void setupAll(Map<String, RunDescription> descriptions) {
+		delegate.setupAll(descriptions);
+	}
+
+	@Override
+	public void remove(String id) {
+		delegate.remove(id);
+	}
+
+	@Override
+	public boolean isRunning(String id) {
+		return delegate.isRunning(id);
+	}
+
+	@Override
+	public boolean isQueued(String id) {
+		return delegate.isQueued(id);
+	}
+
+	@Override
+	public Map<String, RunStatus> getStatuses(Collection<String> ids) {
+		return delegate.getStatuses(ids);
+	}
+
+	@Override
+	public boolean exists(String id) {
+		return delegate.exists(id);
+	}
+
+	@Override
+	public FileObject getRootDirectory() {
+		return delegate.getRootDirectory();
+	}
+
+	@Override
+	public FileObject getRunDirectory(String id) {
+		return delegate.getRunDirectory(id);
+	}
+
+	@Override
+	public Collection<String> getAvailableIds() {
+		return delegate.getAvailableIds();
+	}
+
+	@Override
+	public Collection<String> getQueuedIds() {
+		return delegate.getQueuedIds();
+	}
+}
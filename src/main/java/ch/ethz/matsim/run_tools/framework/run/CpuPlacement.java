@@ -0,0 +1,299 @@
+package ch.ethz.matsim.run_tools.framework.run;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Assigns disjoint CPU sets to concurrent runs. Runs that request a number of
+ * cores get a fixed set, preferably on a single NUMA node; all other runs share
+ * the remaining CPUs in equal, contiguous parts, which are recomputed whenever
+ * runs start or finish. Sets are applied with taskset (or numactl, if available,
+ * to also prefer memory of the NUMA node).
+ *
+ * Placement is opt-in: environments do not know about the sets of each other,
+ * so only one environment per host should use it. If requested, runs also get
+ * -XX:ActiveProcessorCount for the size of their set at start, which needs Java
+ * 8u191 or newer and is not updated when the set changes later on.
+ */
+public class CpuPlacement {
+	final private Logger logger = Logger.getLogger(CpuPlacement.class);
+
+	final private static File TASKSET = new File("/usr/bin/taskset");
+	final private static File NUMACTL = new File("/usr/bin/numactl");
+
+	// CPUs per NUMA node, restricted to the ones the driver may use
+	final private List<List<Integer>> nodes;
+	final private boolean enabled;
+	final private boolean limitActiveProcessors;
+
+	public CpuPlacement(List<List<Integer>> nodes, boolean enabled, boolean limitActiveProcessors) {
+		this.nodes = nodes;
+		this.enabled = enabled && TASKSET.exists();
+		this.limitActiveProcessors = limitActiveProcessors;
+	}
+
+	public CpuPlacement(List<List<Integer>> nodes, boolean enabled) {
+		this(nodes, enabled, false);
+	}
+
+	static public CpuPlacement detect() {
+		return detect(false);
+	}
+
+	static public CpuPlacement detect(boolean limitActiveProcessors) {
+		Set<Integer> allowed = readAllowedCpus();
+		List<List<Integer>> nodes = new LinkedList<>();
+
+		File[] nodeDirectories = new File("/sys/devices/system/node")
+				.listFiles(f -> f.getName().matches("node[0-9]+"));
+
+		if (nodeDirectories != null) {
+			Arrays.sort(nodeDirectories,
+					(a, b) -> Integer.compare(Integer.parseInt(a.getName().substring(4)),
+							Integer.parseInt(b.getName().substring(4))));
+
+			for (File nodeDirectory : nodeDirectories) {
+				try {
+					List<Integer> cpus = parseList(readFile(new File(nodeDirectory, "cpulist")));
+					cpus.retainAll(allowed);
+
+					if (cpus.size() > 0) {
+						nodes.add(cpus);
+					}
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		if (nodes.size() == 0) {
+			nodes.add(new LinkedList<>(allowed));
+		}
+
+		return new CpuPlacement(nodes, true, limitActiveProcessors);
+	}
+
+	static public CpuPlacement disabled() {
+		return new CpuPlacement(Collections.emptyList(), false);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Computes the CPU sets of all given runs. The map contains the requested
+	 * number of cores per run (or null), current contains the sets that are in use
+	 * now. Runs that cannot be placed are mapped to null, i.e. they are not
+	 * pinned.
+	 */
+	public Map<String, List<Integer>> assign(Map<String, Integer> requestedCores,
+			Map<String, List<Integer>> current) {
+		Map<String, List<Integer>> assignment = new HashMap<>();
+
+		if (!enabled) {
+			return assignment;
+		}
+
+		Set<Integer> free = new TreeSet<>();
+		nodes.forEach(free::addAll);
+
+		List<String> fixedIds = requestedCores.keySet().stream().filter(id -> requestedCores.get(id) != null).sorted()
+				.collect(Collectors.toList());
+		List<String> sharedIds = requestedCores.keySet().stream().filter(id -> requestedCores.get(id) == null)
+				.sorted().collect(Collectors.toList());
+
+		// Runs with a fixed number of cores keep their set as long as possible
+		List<String> unplacedIds = new LinkedList<>();
+
+		for (String id : fixedIds) {
+			List<Integer> cpus = current.get(id);
+
+			if (cpus != null && cpus.size() == requestedCores.get(id) && free.containsAll(cpus)) {
+				assignment.put(id, cpus);
+				free.removeAll(cpus);
+			} else {
+				unplacedIds.add(id);
+			}
+		}
+
+		for (String id : unplacedIds) {
+			List<Integer> cpus = allocate(free, requestedCores.get(id));
+
+			if (cpus == null) {
+				logger.warn("Not enough free CPUs to pin run " + id + " to " + requestedCores.get(id) + " cores");
+			} else {
+				free.removeAll(cpus);
+			}
+
+			assignment.put(id, cpus);
+		}
+
+		if (sharedIds.size() > 0) {
+			List<Integer> remaining = new LinkedList<>(free);
+
+			if (remaining.size() < sharedIds.size()) {
+				// Not enough CPUs left to separate the runs
+				for (String id : sharedIds) {
+					assignment.put(id, remaining.isEmpty() ? null : remaining);
+				}
+			} else {
+				int offset = 0;
+
+				for (int i = 0; i < sharedIds.size(); i++) {
+					int size = remaining.size() / sharedIds.size() + (i < remaining.size() % sharedIds.size() ? 1 : 0);
+					assignment.put(sharedIds.get(i), new LinkedList<>(remaining.subList(offset, offset + size)));
+					offset += size;
+				}
+			}
+		}
+
+		return assignment;
+	}
+
+	/**
+	 * Takes the CPUs from the node with the fewest free CPUs that still fits the
+	 * request (to keep large nodes available), or spreads the run over several
+	 * nodes if no single one fits.
+	 */
+	private List<Integer> allocate(Set<Integer> free, int cores) {
+		List<Integer> bestCpus = null;
+
+		for (List<Integer> node : nodes) {
+			List<Integer> nodeFree = node.stream().filter(free::contains).collect(Collectors.toList());
+
+			if (nodeFree.size() >= cores && (bestCpus == null || nodeFree.size() < bestCpus.size())) {
+				bestCpus = nodeFree;
+			}
+		}
+
+		if (bestCpus != null) {
+			return new LinkedList<>(bestCpus.subList(0, cores));
+		}
+
+		if (free.size() >= cores) {
+			return new LinkedList<>(new LinkedList<>(free).subList(0, cores));
+		}
+
+		return null;
+	}
+
+	private Integer getNode(List<Integer> cpus) {
+		for (int i = 0; i < nodes.size(); i++) {
+			if (nodes.get(i).containsAll(cpus)) {
+				return i;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the command that needs to be put in front of the java call to start
+	 * the run on the given CPUs.
+	 */
+	public List<String> buildCommandPrefix(List<Integer> cpus) {
+		if (!enabled || cpus == null) {
+			return Collections.emptyList();
+		}
+
+		Integer node = getNode(cpus);
+
+		if (NUMACTL.exists() && node != null && nodes.size() > 1) {
+			return Arrays.asList(NUMACTL.toString(), "--physcpubind=" + formatList(cpus), "--preferred=" + node);
+		}
+
+		return Arrays.asList(TASKSET.toString(), "-c", formatList(cpus));
+	}
+
+	/**
+	 * Returns the VM arguments for a run that is started on the given CPUs, so
+	 * that thread pools of the JVM are sized to the set.
+	 */
+	public List<String> buildVmArguments(List<Integer> cpus) {
+		if (!enabled || !limitActiveProcessors || cpus == null) {
+			return Collections.emptyList();
+		}
+
+		return Collections.singletonList("-XX:ActiveProcessorCount=" + cpus.size());
+	}
+
+	/**
+	 * Moves all threads of a running process to the given CPUs.
+	 */
+	public void apply(int pid, List<Integer> cpus) {
+		if (!enabled || cpus == null) {
+			return;
+		}
+
+		try {
+			Process process = new ProcessBuilder(TASKSET.toString(), "-a", "-p", "-c", formatList(cpus),
+					String.valueOf(pid)).redirectErrorStream(true).redirectOutput(new File("/dev/null")).start();
+
+			if (process.waitFor() != 0) {
+				logger.warn("Could not move process " + pid + " to CPUs " + formatList(cpus));
+			}
+		} catch (IOException | InterruptedException e) {
+			logger.warn("Could not move process " + pid + " to CPUs " + formatList(cpus), e);
+		}
+	}
+
+	static private Set<Integer> readAllowedCpus() {
+		try {
+			for (String line : Files.readAllLines(new File("/proc/self/status").toPath())) {
+				if (line.startsWith("Cpus_allowed_list:")) {
+					return new TreeSet<>(parseList(line.substring(line.indexOf(':') + 1)));
+				}
+			}
+		} catch (IOException e) {
+		}
+
+		Set<Integer> cpus = new TreeSet<>();
+
+		for (int i = 0; i < Runtime.getRuntime().availableProcessors(); i++) {
+			cpus.add(i);
+		}
+
+		return cpus;
+	}
+
+	static private String readFile(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+	}
+
+	static List<Integer> parseList(String list) {
+		List<Integer> cpus = new LinkedList<>();
+
+		for (String part : list.trim().split(",")) {
+			if (part.isEmpty()) {
+				continue;
+			}
+
+			String[] range = part.split("-");
+			int start = Integer.parseInt(range[0].trim());
+			int end = range.length > 1 ? Integer.parseInt(range[1].trim()) : start;
+
+			for (int cpu = start; cpu <= end; cpu++) {
+				cpus.add(cpu);
+			}
+		}
+
+		return cpus;
+	}
+
+	static String formatList(List<Integer> cpus) {
+		return cpus.stream().map(String::valueOf).collect(Collectors.joining(","));
+	}
+}
@@ -0,0 +1,214 @@
+package ch.ethz.matsim.run_tools.framework.run;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Launches runs directly through ProcessBuilder and tracks their liveness
+ * in-process. Processes started by this instance are watched through their
+ * Process handle, processes adopted after a restart of the driver are checked
+ * through /proc, using the recorded start time to detect reused PIDs. Stopping
+ * sends SIGTERM first and only falls back to SIGKILL after a grace period.
+ */
+public class DirectProcessSupervisor implements ProcessSupervisor {
+	final private Logger logger = Logger.getLogger(DirectProcessSupervisor.class);
+
+	final private static File SETSID = new File("/usr/bin/setsid");
+
+	final private long gracePeriod;
+	final private boolean detach;
+
+	final private Map<Integer, Process> processes = new HashMap<>();
+
+	/**
+	 * @param gracePeriod
+	 *            Milliseconds to wait after SIGTERM before sending SIGKILL.
+	 * @param detach
+	 *            Start every run in its own session (via setsid) so that it
+	 *            survives signals sent to the process group of the driver.
+	 */
+	public DirectProcessSupervisor(long gracePeriod, boolean detach) {
+		this.gracePeriod = gracePeriod;
+		this.detach = detach && SETSID.exists();
+	}
+
+	public DirectProcessSupervisor() {
+		this(10 * 1000, true);
+	}
+
+	@Override
+	synchronized public SupervisedProcess start(String id, File directory, List<String> command, File outputFile,
+			File errorFile) {
+		List<String> processCommand = new LinkedList<>(command);
+
+		if (detach) {
+			// setsid execs the command in place, so the PID stays the one of the JVM
+			processCommand.add(0, SETSID.toString());
+		}
+
+		ProcessBuilder builder = new ProcessBuilder(processCommand);
+		builder.directory(directory);
+		builder.redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")));
+		builder.redirectOutput(ProcessBuilder.Redirect.to(outputFile));
+		builder.redirectError(ProcessBuilder.Redirect.to(errorFile));
+
+		Process process;
+
+		try {
+			process = builder.start();
+		} catch (IOException e) {
+			throw new RuntimeException("Error while starting run " + id, e);
+		}
+
+		int pid = getPid(process);
+		processes.put(pid, process);
+
+		return new SupervisedProcess(pid, ProcFileSystem.getStartTime(pid));
+	}
+
+	@Override
+	synchronized public boolean isAlive(int pid, Long startTime) {
+		Process process = processes.get(pid);
+
+		if (process != null) {
+			if (process.isAlive()) {
+				return true;
+			}
+
+			processes.remove(pid);
+			return false;
+		}
+
+		return ProcFileSystem.isAlive(pid, startTime);
+	}
+
+	@Override
+	synchronized public Set<Integer> findAlive(Map<Integer, Long> candidates) {
+		Set<Integer> alive = new HashSet<>();
+		Set<Integer> listed = null;
+
+		for (Map.Entry<Integer, Long> candidate : candidates.entrySet()) {
+			int pid = candidate.getKey();
+
+			if (processes.containsKey(pid)) {
+				if (isAlive(pid, candidate.getValue())) {
+					alive.add(pid);
+				}
+			} else {
+				if (listed == null) {
+					listed = ProcFileSystem.listProcesses();
+				}
+
+				if (listed.contains(pid) && ProcFileSystem.isAlive(pid, candidate.getValue())) {
+					alive.add(pid);
+				}
+			}
+		}
+
+		return alive;
+	}
+
+	/**
+	 * Sends the signals while holding the lock, but waits for the process to end
+	 * without it, so liveness checks of other runs are not blocked meanwhile.
+	 */
+	@Override
+	public void stop(int pid, Long startTime) {
+		Process process;
+
+		synchronized (this) {
+			process = processes.get(pid);
+		}
+
+		try {
+			if (process != null) {
+				synchronized (this) {
+					process.destroy();
+				}
+
+				if (!process.waitFor(gracePeriod, TimeUnit.MILLISECONDS)) {
+					logger.warn("Process " + pid + " did not terminate within " + gracePeriod + "ms, killing it");
+
+					synchronized (this) {
+						process.destroyForcibly();
+					}
+
+					process.waitFor(gracePeriod, TimeUnit.MILLISECONDS);
+				}
+			} else if (ProcFileSystem.isAlive(pid, startTime)) {
+				// The process has been started by another driver, so there is no handle.
+				synchronized (this) {
+					signal(pid, "TERM");
+				}
+
+				if (!waitForExit(pid, startTime, gracePeriod)) {
+					logger.warn("Process " + pid + " did not terminate within " + gracePeriod + "ms, killing it");
+
+					synchronized (this) {
+						signal(pid, "KILL");
+					}
+
+					waitForExit(pid, startTime, gracePeriod);
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while waiting for process " + pid + " to end.");
+		}
+
+		// Also forgets about the handle once the process has ended
+		if (isAlive(pid, startTime)) {
+			throw new RuntimeException("Unable to stop process with pid " + pid);
+		}
+	}
+
+	private boolean waitForExit(int pid, Long startTime, long timeout) throws InterruptedException {
+		long failTime = System.currentTimeMillis() + timeout;
+
+		while (ProcFileSystem.isAlive(pid, startTime)) {
+			if (System.currentTimeMillis() > failTime) {
+				return false;
+			}
+
+			Thread.sleep(100);
+		}
+
+		return true;
+	}
+
+	private void signal(int pid, String signal) throws InterruptedException {
+		try {
+			Runtime.getRuntime().exec(new String[] { "kill", "-" + signal, String.valueOf(pid) }).waitFor();
+		} catch (IOException e) {
+			throw new RuntimeException("Error while sending SIG" + signal + " to process " + pid);
+		}
+	}
+
+	static private int getPid(Process process) {
+		try {
+			// Java 9 and newer
+			Method method = Process.class.getMethod("pid");
+			return ((Long) method.invoke(process)).intValue();
+		} catch (ReflectiveOperationException e) {
+		}
+
+		try {
+			// java.lang.UNIXProcess on Java 8
+			Field field = process.getClass().getDeclaredField("pid");
+			field.setAccessible(true);
+			return field.getInt(process);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot obtain PID of process on this JVM", e);
+		}
+	}
+}
@@ -0,0 +1,375 @@
+package ch.ethz.matsim.run_tools.framework.run;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ch.ethz.matsim.run_tools.framework.run.LocalLinuxRunEnvironment.RunInfo;
+
+/**
+ * Persists the runs of a LocalLinuxRunEnvironment as a snapshot (the state
+ * file, same format as before) plus an append-only journal of put and remove
+ * records. Every change costs one appended line. Once the journal grows beyond
+ * a threshold it is compacted into a new snapshot, which is written to a
+ * temporary file and atomically moved into place, so a crash at any point
+ * leaves either the old or the new snapshot and a journal that can be replayed
+ * on top of it.
+ *
+ * Several processes may share the same store. All access happens inside a
+ * transaction that holds an exclusive lock on a lock file next to the state and
+ * first replays the records other processes have appended since the last
+ * transaction. Each compaction starts the journal with a new epoch record, so
+ * other processes notice that they need to reload the snapshot.
+ */
+class JournaledStateStore {
+	final private Logger logger = Logger.getLogger(JournaledStateStore.class);
+
+	final private static String PUT = "put";
+	final private static String REMOVE = "remove";
+	final private static String EPOCH = "epoch";
+
+	final private TypeReference<HashMap<String, RunInfo>> snapshotTypeReference = new TypeReference<HashMap<String, RunInfo>>() {
+	};
+
+	final private ObjectMapper objectMapper = new ObjectMapper();
+
+	final private File snapshotFile;
+	final private File journalFile;
+	final private File lockFile;
+	final private int minimumCompactionSize;
+
+	final private Map<String, RunInfo> runs = new HashMap<>();
+
+	private OutputStream journalStream = null;
+	private int journalSize = 0;
+	private long journalOffset = 0;
+	private String epoch = null;
+
+	private FileChannel lockChannel = null;
+	private FileLock lock = null;
+	private int lockDepth = 0;
+
+	public JournaledStateStore(File snapshotFile, int minimumCompactionSize) {
+		this.snapshotFile = snapshotFile;
+		this.journalFile = new File(snapshotFile.getPath() + ".journal");
+		this.lockFile = new File(snapshotFile.getPath() + ".lock");
+		this.minimumCompactionSize = minimumCompactionSize;
+	}
+
+	public JournaledStateStore(File snapshotFile) {
+		this(snapshotFile, 1000);
+	}
+
+	/**
+	 * Reads the snapshot and replays the journal on top of it. The returned map is
+	 * owned by the store and is only guaranteed to be up to date inside a
+	 * transaction.
+	 */
+	public Map<String, RunInfo> load() {
+		return transaction(() -> {
+			if (!snapshotFile.exists() || epoch == null) {
+				compact();
+			}
+
+			logger.info("Loaded " + runs.size() + " runs from " + snapshotFile);
+			return runs;
+		});
+	}
+
+	/**
+	 * Runs the given operation while holding the lock of the store, with the state
+	 * refreshed from the journal beforehand. Transactions may be nested.
+	 */
+	synchronized public <T> T transaction(Supplier<T> operation) {
+		lock();
+
+		try {
+			return operation.get();
+		} finally {
+			unlock();
+		}
+	}
+
+	synchronized public void execute(Runnable operation) {
+		transaction(() -> {
+			operation.run();
+			return null;
+		});
+	}
+
+	private void lock() {
+		if (lockDepth++ > 0) {
+			return;
+		}
+
+		try {
+			lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			lock = lockChannel.lock();
+			refresh();
+		} catch (IOException e) {
+			lockDepth = 0;
+			releaseLock();
+			throw new RuntimeException("Error while locking " + lockFile, e);
+		}
+	}
+
+	private void unlock() {
+		if (--lockDepth == 0) {
+			releaseLock();
+		}
+	}
+
+	private void releaseLock() {
+		try {
+			if (lock != null) {
+				lock.release();
+			}
+
+			if (lockChannel != null) {
+				lockChannel.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Error while unlocking " + lockFile, e);
+		} finally {
+			lock = null;
+			lockChannel = null;
+		}
+	}
+
+	private void checkLocked() {
+		if (lockDepth == 0) {
+			throw new IllegalStateException("Store " + snapshotFile + " must be modified inside a transaction");
+		}
+	}
+
+	private void refresh() throws IOException {
+		if (epoch == null || !journalFile.exists() || journalFile.length() < journalOffset
+				|| !epoch.equals(readEpoch())) {
+			reload();
+		} else {
+			replay();
+		}
+	}
+
+	private String readEpoch() throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(journalFile, "r")) {
+			String line = file.readLine();
+
+			while (line != null && line.trim().length() == 0) {
+				line = file.readLine();
+			}
+
+			if (line != null) {
+				JournalRecord record = objectMapper.readValue(line, JournalRecord.class);
+
+				if (EPOCH.equals(record.operation)) {
+					return record.id;
+				}
+			}
+		} catch (IOException e) {
+		}
+
+		return null;
+	}
+
+	private void reload() throws IOException {
+		runs.clear();
+
+		if (snapshotFile.exists()) {
+			runs.putAll(objectMapper.readValue(snapshotFile, snapshotTypeReference));
+		}
+
+		epoch = null;
+		journalOffset = 0;
+		journalSize = 0;
+
+		if (journalFile.exists()) {
+			replay();
+		}
+	}
+
+	/**
+	 * Replays all complete records after the current offset.
+	 */
+	private void replay() throws IOException {
+		byte[] data;
+
+		try (RandomAccessFile file = new RandomAccessFile(journalFile, "r")) {
+			data = new byte[(int) (file.length() - journalOffset)];
+			file.seek(journalOffset);
+			file.readFully(data);
+		}
+
+		int lineStart = 0;
+
+		for (int i = 0; i < data.length; i++) {
+			if (data[i] != '\n') {
+				continue;
+			}
+
+			String line = new String(data, lineStart, i - lineStart, StandardCharsets.UTF_8);
+			lineStart = i + 1;
+
+			if (line.trim().length() == 0) {
+				continue;
+			}
+
+			JournalRecord record;
+
+			try {
+				record = objectMapper.readValue(line, JournalRecord.class);
+			} catch (IOException e) {
+				logger.warn("Ignoring corrupt journal record in " + journalFile);
+				continue;
+			}
+
+			if (EPOCH.equals(record.operation)) {
+				epoch = record.id;
+			} else {
+				apply(record);
+				journalSize++;
+			}
+		}
+
+		// An incomplete last line is the remainder of a crash while writing and is
+		// skipped, the next complete record is appended after it.
+		journalOffset += lineStart;
+	}
+
+	private void apply(JournalRecord record) {
+		if (PUT.equals(record.operation)) {
+			runs.put(record.id, record.info);
+		} else if (REMOVE.equals(record.operation)) {
+			runs.remove(record.id);
+		} else {
+			throw new IllegalStateException("Unknown journal operation " + record.operation);
+		}
+	}
+
+	public void put(String id, RunInfo info) {
+		checkLocked();
+
+		JournalRecord record = new JournalRecord();
+		record.operation = PUT;
+		record.id = id;
+		record.info = info;
+
+		runs.put(id, info);
+		append(record);
+	}
+
+	public void remove(String id) {
+		checkLocked();
+
+		JournalRecord record = new JournalRecord();
+		record.operation = REMOVE;
+		record.id = id;
+
+		runs.remove(id);
+		append(record);
+	}
+
+	private void append(JournalRecord record) {
+		try {
+			if (journalStream == null) {
+				journalStream = new FileOutputStream(journalFile, true);
+			}
+
+			long length = journalFile.length();
+
+			byte[] line = objectMapper.writeValueAsBytes(record);
+			byte[] buffer = new byte[line.length + 2];
+			System.arraycopy(line, 0, buffer, 1, line.length);
+			buffer[0] = '\n';
+			buffer[line.length + 1] = '\n';
+
+			// The leading newline terminates a torn record left behind by a crash.
+			journalStream.write(buffer);
+			journalStream.flush();
+
+			journalOffset = length + buffer.length;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		// Epoch records are written by compact itself and must not trigger it again
+		if (!EPOCH.equals(record.operation)) {
+			journalSize++;
+
+			if (journalSize > Math.max(minimumCompactionSize, runs.size())) {
+				compact();
+			}
+		}
+	}
+
+	/**
+	 * Writes the current state into a new snapshot and starts a new journal epoch.
+	 */
+	public void compact() {
+		checkLocked();
+
+		File temporaryFile = new File(snapshotFile.getPath() + ".tmp");
+
+		try {
+			try (FileOutputStream outputStream = new FileOutputStream(temporaryFile)) {
+				outputStream.write(objectMapper.writeValueAsBytes(runs));
+				outputStream.getFD().sync();
+			}
+
+			Files.move(temporaryFile.toPath(), snapshotFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+
+			if (journalStream != null) {
+				journalStream.close();
+			}
+
+			journalStream = new FileOutputStream(journalFile, false);
+			journalStream.close();
+			journalStream = null;
+
+			JournalRecord record = new JournalRecord();
+			record.operation = EPOCH;
+			record.id = UUID.randomUUID().toString();
+
+			epoch = record.id;
+			journalSize = 0;
+			append(record);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	synchronized public void close() {
+		try {
+			if (journalStream != null) {
+				journalStream.close();
+				journalStream = null;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static private class JournalRecord {
+		public String operation;
+		public String id;
+		public RunInfo info;
+	}
+}
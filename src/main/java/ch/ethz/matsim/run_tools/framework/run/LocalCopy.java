@@ -0,0 +1,41 @@
+package ch.ethz.matsim.run_tools.framework.run;
+
+import java.io.Closeable;
+
+import org.apache.commons.vfs2.FileObject;
+
+/**
+ * A file handed out by RunEnvironment.getLocalCopy for reading. A cached copy
+ * is not deleted before it has been closed, so it should be used with
+ * try-with-resources.
+ */
+public class LocalCopy implements Closeable {
+	final private FileObject file;
+	final private Runnable release;
+
+	private boolean closed = false;
+
+	public LocalCopy(FileObject file, Runnable release) {
+		this.file = file;
+		this.release = release;
+	}
+
+	public LocalCopy(FileObject file) {
+		this(file, null);
+	}
+
+	public FileObject getFile() {
+		return file;
+	}
+
+	@Override
+	synchronized public void close() {
+		if (!closed) {
+			closed = true;
+
+			if (release != null) {
+				release.run();
+			}
+		}
+	}
+}
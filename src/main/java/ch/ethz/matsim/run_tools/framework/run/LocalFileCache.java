@@ -0,0 +1,198 @@
+package ch.ethz.matsim.run_tools.framework.run;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.vfs2.FileContent;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.VFS;
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps local copies of files that are read from a (remote) VFS file system. A
+ * copy is reused as long as size and modification time of the original have
+ * not changed. Once the copies exceed the maximum size, the least recently used
+ * ones are deleted. The cache directory is emptied on construction, as the
+ * index is only kept in memory.
+ *
+ * Copies are handed out as LocalCopy and counted until they are closed. A copy
+ * that is still in use is never evicted, and if it is replaced by a newer
+ * download, it is only deleted once the last user has closed it.
+ */
+public class LocalFileCache {
+	final private Logger logger = Logger.getLogger(LocalFileCache.class);
+
+	final private File directory;
+	final private long maximumSize;
+
+	// Iterates from the least to the most recently used entry
+	final private Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long size = 0;
+	private long sequence = 0;
+
+	public LocalFileCache(File directory, long maximumSize) {
+		this.directory = directory;
+		this.maximumSize = maximumSize;
+
+		try {
+			FileUtils.forceMkdir(directory);
+			FileUtils.cleanDirectory(directory);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns a local copy of the file, downloading it if there is no valid copy
+	 * yet. Files on the local file system and files that do not exist are
+	 * returned as they are. The copy needs to be closed after reading.
+	 */
+	public LocalCopy get(FileObject file) {
+		if ("file".equals(file.getName().getScheme())) {
+			return new LocalCopy(file);
+		}
+
+		String uri = file.getName().getURI();
+
+		try {
+			file.refresh();
+
+			if (!file.exists() || !file.isFile()) {
+				synchronized (this) {
+					retire(entries.remove(uri));
+				}
+
+				return new LocalCopy(file);
+			}
+
+			FileContent content = file.getContent();
+			long remoteSize = content.getSize();
+			long remoteLastModifiedTime = content.getLastModifiedTime();
+
+			synchronized (this) {
+				Entry entry = entries.get(uri);
+
+				if (entry != null && entry.remoteSize == remoteSize
+						&& entry.remoteLastModifiedTime == remoteLastModifiedTime && entry.file.exists()) {
+					return acquire(entry);
+				}
+			}
+
+			// The download runs without holding the lock, so other files can be served
+			// in the meantime
+			File localFile = new File(directory, nextSequence() + "_" + file.getName().getBaseName());
+			File temporaryFile = new File(localFile.getPath() + ".tmp");
+
+			try (InputStream inputStream = content.getInputStream()) {
+				Files.copy(inputStream, temporaryFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+
+			Files.move(temporaryFile.toPath(), localFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			logger.debug("Cached " + uri + " (" + localFile.length() + " bytes)");
+
+			Entry entry = new Entry();
+			entry.file = localFile;
+			entry.length = localFile.length();
+			entry.remoteSize = remoteSize;
+			entry.remoteLastModifiedTime = remoteLastModifiedTime;
+
+			synchronized (this) {
+				// A concurrent download of the same file may have finished first, its copy
+				// is replaced but stays on disk while it is in use
+				retire(entries.put(uri, entry));
+				size += entry.length;
+
+				LocalCopy copy = acquire(entry);
+				evict();
+				return copy;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Error while caching " + uri, e);
+		}
+	}
+
+	synchronized private long nextSequence() {
+		return sequence++;
+	}
+
+	private LocalCopy acquire(Entry entry) throws FileSystemException {
+		entry.references++;
+		return new LocalCopy(VFS.getManager().resolveFile(entry.file.getAbsolutePath()), () -> release(entry));
+	}
+
+	synchronized private void release(Entry entry) {
+		entry.references--;
+
+		if (entry.references == 0) {
+			if (entry.retired) {
+				entry.file.delete();
+			} else {
+				// Entries that were in use may have kept the cache above its size
+				evict();
+			}
+		}
+	}
+
+	/**
+	 * Takes an entry that has been removed from the index off the books and
+	 * deletes its file, unless it is still in use.
+	 */
+	private void retire(Entry entry) {
+		if (entry != null) {
+			size -= entry.length;
+			entry.retired = true;
+
+			if (entry.references == 0) {
+				entry.file.delete();
+			}
+		}
+	}
+
+	private void evict() {
+		Iterator<Entry> iterator = entries.values().iterator();
+
+		while (size > maximumSize && iterator.hasNext()) {
+			Entry entry = iterator.next();
+
+			if (entry.references == 0) {
+				iterator.remove();
+				retire(entry);
+			}
+		}
+	}
+
+	synchronized public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Removes all entries. Copies that are in use are deleted once they are
+	 * closed.
+	 */
+	synchronized public void clear() {
+		for (Entry entry : entries.values()) {
+			retire(entry);
+		}
+
+		entries.clear();
+	}
+
+	static private class Entry {
+		File file;
+		long length;
+		long remoteSize;
+		long remoteLastModifiedTime;
+
+		int references = 0;
+		boolean retired = false;
+	}
+}
@@ -1,15 +1,7 @@
 package ch.ethz.matsim.run_tools.framework.run;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -26,61 +18,100 @@ import org.apache.commons.vfs2.FileSystemException;
 import org.apache.commons.vfs2.VFS;
 import org.apache.log4j.Logger;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import ch.ethz.matsim.run_tools.framework.run.ProcessSupervisor.SupervisedProcess;
 
 public class LocalLinuxRunEnvironment implements RunEnvironment {
 	final private Logger logger = Logger.getLogger(LocalLinuxRunEnvironment.class);
 
-	final private TypeReference<HashMap<String, RunInfo>> environmentTypeReference = new TypeReference<HashMap<String, RunInfo>>() {
-	};
-
 	final private File rootDirectory;
-	final private File environmentFile;
+	final private JournaledStateStore store;
 
 	final private Map<String, RunInfo> environment;
+	final private ProcessSupervisor supervisor;
+	final private CpuPlacement placement;
 
 	public LocalLinuxRunEnvironment(String stateFile, File rootDirectory) {
+		this(stateFile, rootDirectory, new DirectProcessSupervisor());
+	}
+
+	public LocalLinuxRunEnvironment(String stateFile, File rootDirectory, ProcessSupervisor supervisor) {
+		this(stateFile, rootDirectory, supervisor, CpuPlacement.disabled());
+	}
+
+	public LocalLinuxRunEnvironment(String stateFile, File rootDirectory, ProcessSupervisor supervisor,
+			CpuPlacement placement) {
 		this.rootDirectory = rootDirectory;
+		this.supervisor = supervisor;
+		this.placement = placement;
 
-		try {
-			this.environmentFile = new File(rootDirectory, stateFile);
+		File environmentFile = new File(rootDirectory, stateFile);
 
-			if (environmentFile.exists()) {
-				environment = new ObjectMapper().readValue(environmentFile, environmentTypeReference);
-			} else {
-				environment = new HashMap<>();
-				updateEnvironment();
-				logger.info("Initialized environment at " + environmentFile);
-			}
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+		if (!environmentFile.exists()) {
+			logger.info("Initialized environment at " + environmentFile);
 		}
 
+		this.store = new JournaledStateStore(environmentFile);
+		this.environment = store.load();
+
 		logger.info("Initialized environment with " + environment.size() + " runs.");
 		cleanup();
 	}
 
 	private void cleanup() {
-		Set<String> removeIds = new HashSet<>();
+		store.execute(() -> {
+			Set<String> removeIds = new HashSet<>();
+
+			for (String id : environment.keySet()) {
+				if (!exists(id)) {
+					removeIds.add(id);
+					logger.info("Cleanup: Run " + id + " does not exist anymore.");
+				}
+			}
+
+			for (String id : removeIds) {
+				store.remove(id);
+			}
+
+			Map<String, RunStatus> statuses = resolveStatuses(environment.keySet());
+
+			for (String id : environment.keySet()) {
+				if (environment.get(id).pid != null && statuses.get(id) != RunStatus.RUNNING) {
+					clearProcess(id);
+					logger.info("Cleanup: Run " + id + " is not running anymore. Setting PID to null.");
+				}
+			}
+
+			rebalance(null);
+		});
+	}
 
-		for (String id : environment.keySet()) {
-			if (!exists(id)) {
-				removeIds.add(id);
-				logger.info("Cleanup: Run " + id + " does not exist anymore.");
+	private Map<String, RunStatus> resolveStatuses(Collection<String> ids) {
+		Map<String, RunStatus> statuses = new HashMap<>();
+		Map<Integer, Long> processes = new HashMap<>();
+
+		for (String id : ids) {
+			RunInfo info = environment.get(id);
+
+			if (info != null && info.pid != null) {
+				processes.put(info.pid, info.startTime);
 			}
 		}
 
-		environment.keySet().removeAll(removeIds);
+		Set<Integer> alive = supervisor.findAlive(processes);
+
+		for (String id : ids) {
+			RunInfo info = environment.get(id);
 
-		for (String id : environment.keySet()) {
-			if (!isRunning(id, false)) {
-				environment.get(id).pid = null;
-				logger.info("Cleanup: Run " + id + " is not running anymore. Setting PID to null.");
+			if (info == null || !getSimulationDirectory(id).exists()) {
+				statuses.put(id, RunStatus.MISSING);
+			} else if (info.pid != null && alive.contains(info.pid)) {
+				statuses.put(id, RunStatus.RUNNING);
+			} else {
+				statuses.put(id, RunStatus.IDLE);
 			}
 		}
 
-		updateEnvironment();
+		return statuses;
 	}
 
 	private File getSimulationDirectory(String id) {
@@ -99,147 +130,157 @@ public class LocalLinuxRunEnvironment implements RunEnvironment {
 		}
 	}
 
-	private void updateEnvironment() {
-		try {
-			new ObjectMapper().writeValue(environmentFile, environment);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
+	private void updateRun(String id) {
+		store.put(id, environment.get(id));
 	}
 
-	@Override
-	public void setup(String id, RunDescription description) {
-		if (environment.containsKey(id)) {
-			throw new IllegalStateException("Run " + id + " already exists");
-		}
+	private void clearProcess(String id) {
+		RunInfo info = environment.get(id);
+		info.pid = null;
+		info.startTime = null;
+		info.cpus = null;
+		updateRun(id);
+	}
 
-		if (getSimulationDirectory(id).exists()) {
-			throw new IllegalStateException("Run " + id + " is already initialized");
+	/**
+	 * Recomputes the CPU sets of all running runs (and the one that is about to be
+	 * started) and moves the runs whose set has changed.
+	 */
+	private Map<String, List<Integer>> rebalance(String startingId) {
+		Map<String, Integer> requestedCores = new HashMap<>();
+		Map<String, List<Integer>> current = new HashMap<>();
+
+		for (Map.Entry<String, RunInfo> entry : environment.entrySet()) {
+			if (entry.getValue().pid != null || entry.getKey().equals(startingId)) {
+				requestedCores.put(entry.getKey(), entry.getValue().description.cores);
+				current.put(entry.getKey(), entry.getValue().cpus);
+			}
 		}
 
-		if (description.classPath == null || description.classPath.isEmpty()) {
-			throw new IllegalArgumentException("No classpath set for run " + id);
-		}
+		Map<String, List<Integer>> assignment = placement.assign(requestedCores, current);
 
-		if (description.entryPoint == null) {
-			throw new IllegalArgumentException("No entry point set for run " + id);
+		for (Map.Entry<String, List<Integer>> entry : assignment.entrySet()) {
+			RunInfo info = environment.get(entry.getKey());
+
+			if (info.pid != null && entry.getValue() != null && !entry.getValue().equals(info.cpus)) {
+				placement.apply(info.pid, entry.getValue());
+				info.cpus = entry.getValue();
+				updateRun(entry.getKey());
+				logger.info("Moved run " + entry.getKey() + " to CPUs " + CpuPlacement.formatList(info.cpus));
+			}
 		}
 
-		getSimulationDirectory(id).mkdir();
+		return assignment;
+	}
+
+	@Override
+	public void setup(String id, RunDescription description) {
+		setupAll(Collections.singletonMap(id, description));
+	}
+
+	@Override
+	public void setupAll(Map<String, RunDescription> descriptions) {
+		store.execute(() -> {
+			for (Map.Entry<String, RunDescription> entry : descriptions.entrySet()) {
+				String id = entry.getKey();
+				RunDescription description = entry.getValue();
+
+				if (environment.containsKey(id)) {
+					throw new IllegalStateException("Run " + id + " already exists");
+				}
+
+				if (getSimulationDirectory(id).exists()) {
+					throw new IllegalStateException("Run " + id + " is already initialized");
+				}
+
+				if (description.classPath == null || description.classPath.isEmpty()) {
+					throw new IllegalArgumentException("No classpath set for run " + id);
+				}
+
+				if (description.entryPoint == null) {
+					throw new IllegalArgumentException("No entry point set for run " + id);
+				}
+			}
 
-		RunInfo info = new RunInfo();
-		info.description = description;
+			for (Map.Entry<String, RunDescription> entry : descriptions.entrySet()) {
+				getSimulationDirectory(entry.getKey()).mkdir();
 
-		environment.put(id, info);
+				RunInfo info = new RunInfo();
+				info.description = entry.getValue();
 
-		updateEnvironment();
-		logger.info("Set up run " + id);
+				store.put(entry.getKey(), info);
+				logger.info("Set up run " + entry.getKey());
+			}
+		});
 	}
 
 	@Override
 	public void remove(String id) {
-		checkExists(id);
-		checkInitialized(id);
-
-		if (isRunning(id)) {
-			throw new IllegalStateException();
-		}
+		store.execute(() -> {
+			checkExists(id);
+			checkInitialized(id);
 
-		try {
-			FileUtils.deleteDirectory(getSimulationDirectory(id));
-		} catch (IOException e) {
-			throw new RuntimeException("Could not delete run " + id);
-		}
+			if (isRunning(id)) {
+				throw new IllegalStateException();
+			}
 
-		environment.remove(id);
+			try {
+				FileUtils.deleteDirectory(getSimulationDirectory(id));
+			} catch (IOException e) {
+				throw new RuntimeException("Could not delete run " + id);
+			}
 
-		updateEnvironment();
-		logger.info("Removed run " + id);
+			store.remove(id);
+			logger.info("Removed run " + id);
+		});
 	}
 
 	@Override
 	public void start(String id) {
-		checkExists(id);
-		checkInitialized(id);
-
-		if (isRunning(id)) {
-			throw new IllegalStateException("Run " + id + " is already running");
-		}
+		store.execute(() -> {
+			checkExists(id);
+			checkInitialized(id);
 
-		RunInfo info = environment.get(id);
-		String path = getSimulationDirectory(id).getAbsolutePath();
-
-		List<String> command = new LinkedList<>();
-		command.add("java");
-		command.addAll(info.description.vmArguments);
-		command.add("-cp");
-		command.add(String.join(":", info.description.classPath.stream().map(s -> new File(rootDirectory, s).toString())
-				.collect(Collectors.toList())));
-		command.add(info.description.entryPoint);
-		command.addAll(info.description.arguments);
-		command.add("1>");
-		command.add(new File(path, "run_output.log").toString());
-		command.add("2>");
-		command.add(new File(path, "run_error.log").toString());
-		command.add("&");
-		String javaCommand = String.join(" ", command);
-
-		File pidPath = new File(path, "simulation.pid");
-		File runScriptPath = new File(path, "runner.sh");
-
-		String runScript = "cd " + path + "\n" + javaCommand + "\necho $! > " + pidPath;
+			if (isRunning(id)) {
+				throw new IllegalStateException("Run " + id + " is already running");
+			}
 
-		try {
-			OutputStream outputStream = new FileOutputStream(runScriptPath);
-			OutputStreamWriter streamWriter = new OutputStreamWriter(outputStream);
-			streamWriter.write(runScript);
-			streamWriter.flush();
-			streamWriter.close();
-		} catch (FileNotFoundException e) {
-			throw new RuntimeException("Error while creating the run file for run " + id);
-		} catch (IOException e) {
-			throw new RuntimeException("Error while writing the run file for run " + id);
-		}
+			RunInfo info = environment.get(id);
+			File path = getSimulationDirectory(id);
 
-		// Start.
-		try {
-			Runtime.getRuntime().exec("sh " + runScriptPath);
-		} catch (IOException e) {
-			throw new RuntimeException("Error while running the run script for run " + id);
-		}
+			List<Integer> cpus = rebalance(id).get(id);
 
-		long failTime = System.currentTimeMillis() + 10 * 1000;
+			List<String> command = new LinkedList<>(placement.buildCommandPrefix(cpus));
+			command.add("java");
 
-		while (!pidPath.exists()) {
-			if (System.currentTimeMillis() > failTime) {
-				throw new RuntimeException("Unable to get PID for run " + id + ". Possibly still running.");
+			if (!info.description.vmArguments.stream().anyMatch(a -> a.startsWith("-XX:ActiveProcessorCount"))) {
+				// Rebalancing may change the set later, but thread pools are sized now
+				command.addAll(placement.buildVmArguments(cpus));
 			}
 
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException e) {
-				throw new RuntimeException("Interrupted while getting PID for run " + id + ". Possibly still running.");
-			}
-		}
+			command.addAll(info.description.vmArguments);
+			command.add("-cp");
+			command.add(String.join(":", info.description.classPath.stream().map(s -> new File(rootDirectory, s).toString())
+					.collect(Collectors.toList())));
+			command.add(info.description.entryPoint);
+			command.addAll(info.description.arguments);
 
-		try {
-			InputStream inputStream = new FileInputStream(pidPath);
-			BufferedReader streamReader = new BufferedReader(new InputStreamReader(inputStream));
-			info.pid = Integer.parseInt(streamReader.readLine());
-			streamReader.close();
-		} catch (FileNotFoundException e) {
-			throw new IllegalStateException();
-		} catch (IOException e) {
-			throw new RuntimeException("Error while reading PID for run " + id);
-		}
+			SupervisedProcess process = supervisor.start(id, path, command, new File(path, "run_output.log"),
+					new File(path, "run_error.log"));
+
+			info.pid = process.pid;
+			info.startTime = process.startTime;
+			info.cpus = cpus;
 
-		updateEnvironment();
-		logger.info("Started run " + id + " with PID " + info.pid);
+			updateRun(id);
+			logger.info("Started run " + id + " with PID " + info.pid
+					+ (cpus == null ? "" : " on CPUs " + CpuPlacement.formatList(cpus)));
+		});
 	}
 
 	@Override
 	public boolean isRunning(String id) {
-		return isRunning(id, true);
+		return store.transaction(() -> isRunning(id, true));
 	}
 
 	private boolean isRunning(String id, boolean updateEnvironment) {
@@ -252,21 +293,13 @@ public class LocalLinuxRunEnvironment implements RunEnvironment {
 			return false;
 		}
 
-		try {
-			Process process = Runtime.getRuntime().exec("ps " + info.pid);
-			process.waitFor();
-
-			if (process.exitValue() == 0) {
-				return true;
-			}
-		} catch (IOException | InterruptedException e) {
-			throw new RuntimeException("Error while looking for PID " + info.pid + " (run " + id + ")");
+		if (supervisor.isAlive(info.pid, info.startTime)) {
+			return true;
 		}
 
 		if (updateEnvironment) {
-			info.pid = null;
-
-			updateEnvironment();
+			clearProcess(id);
+			rebalance(null);
 			logger.info("Run " + id + " is not running anymore. Cleaning up PID.");
 		}
 
@@ -275,58 +308,95 @@ public class LocalLinuxRunEnvironment implements RunEnvironment {
 
 	@Override
 	public void stop(String id) {
-		checkExists(id);
-		checkInitialized(id);
+		RunInfo info = store.transaction(() -> {
+			checkExists(id);
+			checkInitialized(id);
 
-		if (!isRunning(id)) {
-			throw new IllegalStateException("Run " + id + " is not running");
-		}
+			if (!isRunning(id)) {
+				throw new IllegalStateException("Run " + id + " is not running");
+			}
 
-		RunInfo info = environment.get(id);
+			return environment.get(id);
+		});
 
-		try {
-			Runtime.getRuntime().exec("kill -9 " + info.pid);
-		} catch (IOException e) {
-			throw new RuntimeException("Error while killing process with pid " + info.pid + "(run " + id + ")");
-		}
+		// Do not hold the lock while waiting for the process to terminate
+		supervisor.stop(info.pid, info.startTime);
 
-		long failTime = System.currentTimeMillis() + 10 * 1000;
+		store.execute(() -> {
+			RunInfo current = environment.get(id);
 
-		while (isRunning(id)) {
-			if (System.currentTimeMillis() > failTime) {
-				throw new RuntimeException("Unable to stop run " + id);
+			if (current != null && info.pid.equals(current.pid)) {
+				clearProcess(id);
+				rebalance(null);
 			}
+		});
 
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException e) {
-				throw new RuntimeException("Interrupted while waiting for " + id + " to end.");
+		logger.info("Stopped run " + id);
+	}
+
+	@Override
+	public Map<String, RunStatus> getStatuses(Collection<String> ids) {
+		return store.transaction(() -> {
+			Map<String, RunStatus> statuses = resolveStatuses(ids);
+			boolean finished = false;
+
+			for (Map.Entry<String, RunStatus> entry : statuses.entrySet()) {
+				RunInfo info = environment.get(entry.getKey());
+
+				if (entry.getValue() == RunStatus.IDLE && info.pid != null) {
+					clearProcess(entry.getKey());
+					finished = true;
+					logger.info("Run " + entry.getKey() + " is not running anymore. Cleaning up PID.");
+				}
 			}
-		}
 
-		info.pid = null;
+			if (finished) {
+				rebalance(null);
+			}
 
-		updateEnvironment();
-		logger.info("Stopped run " + id);
+			return statuses;
+		});
 	}
 
 	@Override
 	public boolean exists(String id) {
-		return environment.containsKey(id) && getSimulationDirectory(id).exists();
+		return store.transaction(() -> environment.containsKey(id) && getSimulationDirectory(id).exists());
 	}
 
 	public File getDirectory(String id) {
 		return getSimulationDirectory(id);
 	}
 
-	static private class RunInfo {
+	/**
+	 * Returns the processes of all runs that have been started and not been found
+	 * finished yet.
+	 */
+	public Map<String, SupervisedProcess> getProcesses() {
+		return store.transaction(() -> {
+			Map<String, SupervisedProcess> processes = new HashMap<>();
+
+			for (Map.Entry<String, RunInfo> entry : environment.entrySet()) {
+				RunInfo info = entry.getValue();
+
+				if (info.pid != null) {
+					processes.put(entry.getKey(), new SupervisedProcess(info.pid, info.startTime));
+				}
+			}
+
+			return processes;
+		});
+	}
+
+	static class RunInfo {
 		public RunDescription description = null;
 		public Integer pid = null;
+		public Long startTime = null;
+		public List<Integer> cpus = null;
 	}
 
 	@Override
 	public Collection<String> getAvailableIds() {
-		return Collections.unmodifiableCollection(environment.keySet());
+		return store.transaction(() -> Collections.unmodifiableCollection(new HashSet<>(environment.keySet())));
 	}
 
 	@Override
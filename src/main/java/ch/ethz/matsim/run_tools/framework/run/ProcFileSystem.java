@@ -0,0 +1,108 @@
+package ch.ethz.matsim.run_tools.framework.run;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Minimal helpers to inspect processes through /proc without forking.
+ */
+public class ProcFileSystem {
+	private ProcFileSystem() {
+	}
+
+	/**
+	 * Returns the fields of /proc/[pid]/stat that follow the command name, i.e.
+	 * index 0 is the state (field 3 in proc(5)), or null if the process does not
+	 * exist.
+	 */
+	static public String[] readStat(int pid) {
+		try {
+			String stat = new String(Files.readAllBytes(Paths.get("/proc", String.valueOf(pid), "stat")),
+					StandardCharsets.US_ASCII);
+			return stat.substring(stat.lastIndexOf(')') + 2).trim().split(" ");
+		} catch (IOException | IndexOutOfBoundsException e) {
+			return null;
+		}
+	}
+
+	static public Long getStartTime(int pid) {
+		String[] stat = readStat(pid);
+		return stat == null ? null : Long.parseLong(stat[19]);
+	}
+
+	/**
+	 * Checks whether a process with the given PID exists and is not a zombie. If a
+	 * start time is given, it must match as well, which protects against PIDs
+	 * that have been reused by the system.
+	 */
+	static public boolean isAlive(int pid, Long startTime) {
+		String[] stat = readStat(pid);
+
+		if (stat == null || stat[0].equals("Z") || stat[0].equals("X")) {
+			return false;
+		}
+
+		return startTime == null || startTime == Long.parseLong(stat[19]);
+	}
+
+	/**
+	 * Lists the PIDs of all processes with a single pass over /proc.
+	 */
+	static public Set<Integer> listProcesses() {
+		Set<Integer> pids = new HashSet<>();
+		String[] entries = new File("/proc").list();
+
+		if (entries != null) {
+			for (String entry : entries) {
+				if (entry.length() > 0 && Character.isDigit(entry.charAt(0))) {
+					try {
+						pids.add(Integer.parseInt(entry));
+					} catch (NumberFormatException e) {
+					}
+				}
+			}
+		}
+
+		return pids;
+	}
+
+	/**
+	 * Reads the numeric "key: value" lines of files such as /proc/[pid]/status
+	 * (values in kB) or /proc/[pid]/io, or returns null if the file cannot be
+	 * read.
+	 */
+	static public Map<String, Long> readValues(int pid, String file) {
+		List<String> lines;
+
+		try {
+			lines = Files.readAllLines(Paths.get("/proc", String.valueOf(pid), file), StandardCharsets.US_ASCII);
+		} catch (IOException e) {
+			return null;
+		}
+
+		Map<String, Long> values = new HashMap<>();
+
+		for (String line : lines) {
+			int separator = line.indexOf(':');
+
+			if (separator > 0) {
+				String[] value = line.substring(separator + 1).trim().split("\\s+");
+
+				try {
+					values.put(line.substring(0, separator), Long.parseLong(value[0]));
+				} catch (NumberFormatException e) {
+				}
+			}
+		}
+
+		return values;
+	}
+}
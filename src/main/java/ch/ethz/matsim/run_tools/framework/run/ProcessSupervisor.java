@@ -0,0 +1,30 @@
+package ch.ethz.matsim.run_tools.framework.run;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public interface ProcessSupervisor {
+	SupervisedProcess start(String id, File directory, List<String> command, File outputFile, File errorFile);
+
+	boolean isAlive(int pid, Long startTime);
+
+	/**
+	 * Returns the subset of the given PIDs (mapped to their start times) that are
+	 * still alive, ideally resolving all of them at once.
+	 */
+	Set<Integer> findAlive(Map<Integer, Long> processes);
+
+	void stop(int pid, Long startTime);
+
+	static public class SupervisedProcess {
+		final public int pid;
+		final public Long startTime;
+
+		public SupervisedProcess(int pid, Long startTime) {
+			this.pid = pid;
+			this.startTime = startTime;
+		}
+	}
+}
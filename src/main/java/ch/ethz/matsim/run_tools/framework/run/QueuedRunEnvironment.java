@@ -0,0 +1,342 @@
+package ch.ethz.matsim.run_tools.framework.run;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Wraps another RunEnvironment and only starts runs once the declared cores and
+ * memory of all admitted runs fit into the budget of the host. Runs that have
+ * been started but not yet admitted are queued and count as running, so callers
+ * polling isRunning do not mistake them for dead runs. The queue is ordered by
+ * priority and then by submission (FIFO) and is persisted next to the state of
+ * the wrapped environment, so it survives restarts of the driver. Memory is
+ * given in GB, as in RunDescription.
+ *
+ * The budget is only enforced among the runs of this instance, and the queue
+ * file is written without a lock. Drivers that share a host therefore need
+ * their own state files and should each get a share of the resources. Two
+ * instances on the same state file overwrite each other's queue.
+ */
+public class QueuedRunEnvironment implements RunEnvironment {
+	final private Logger logger = Logger.getLogger(QueuedRunEnvironment.class);
+
+	final private RunEnvironment delegate;
+	final private FileObject queueFile;
+	final private ObjectMapper objectMapper = new ObjectMapper();
+
+	final private int availableCores;
+	final private double availableMemory;
+
+	final private QueueState state;
+
+	public QueuedRunEnvironment(String stateFile, RunEnvironment delegate, int availableCores,
+			double availableMemory) {
+		this.delegate = delegate;
+		this.availableCores = availableCores;
+		this.availableMemory = availableMemory;
+
+		try {
+			this.queueFile = delegate.getRootDirectory().resolveFile(stateFile);
+
+			if (queueFile.exists()) {
+				state = objectMapper.readValue(queueFile.getContent().getInputStream(), QueueState.class);
+			} else {
+				state = new QueueState();
+				updateState();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		logger.info("Initialized queue with " + state.queue.size() + " waiting and " + state.admitted.size()
+				+ " admitted runs (" + availableCores + " cores, " + availableMemory + " GB memory).");
+		schedule();
+	}
+
+	private void updateState() {
+		try {
+			OutputStream outputStream = queueFile.getContent().getOutputStream();
+			objectMapper.writeValue(outputStream, state);
+			outputStream.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private Resources getResources(String id) {
+		Resources resources = state.resources.get(id);
+		return resources == null ? new Resources() : resources;
+	}
+
+	private QueueEntry findEntry(String id) {
+		for (QueueEntry entry : state.queue) {
+			if (entry.id.equals(id)) {
+				return entry;
+			}
+		}
+
+		return null;
+	}
+
+	private void releaseFinished() {
+		Map<String, RunStatus> statuses = delegate.getStatuses(state.admitted);
+		Iterator<String> iterator = state.admitted.iterator();
+
+		while (iterator.hasNext()) {
+			String id = iterator.next();
+
+			if (statuses.get(id) != RunStatus.RUNNING) {
+				iterator.remove();
+				logger.info("Released resources of run " + id);
+			}
+		}
+	}
+
+	/**
+	 * Releases the resources of finished runs and admits waiting runs as long as
+	 * they fit. The head of the queue is never skipped, so large runs cannot be
+	 * starved by a stream of small ones.
+	 */
+	synchronized public void schedule() {
+		int initialAdmitted = state.admitted.size();
+		int initialQueued = state.queue.size();
+
+		releaseFinished();
+
+		int usedCores = 0;
+		double usedMemory = 0.0;
+
+		for (String id : state.admitted) {
+			Resources resources = getResources(id);
+			usedCores += resources.cores;
+			usedMemory += resources.memory;
+		}
+
+		state.queue.sort(QUEUE_ORDER);
+
+		while (state.queue.size() > 0) {
+			QueueEntry entry = state.queue.get(0);
+			Resources resources = getResources(entry.id);
+
+			if (usedCores + resources.cores > availableCores
+					|| usedMemory + resources.memory > availableMemory) {
+				break;
+			}
+
+			state.queue.remove(0);
+
+			if (!delegate.exists(entry.id)) {
+				logger.warn("Dropping queued run " + entry.id + " because it does not exist anymore");
+				continue;
+			}
+
+			try {
+				delegate.start(entry.id);
+			} catch (RuntimeException e) {
+				// The run stays at the head of the queue instead of being lost
+				state.queue.add(0, entry);
+				updateState();
+				throw e;
+			}
+
+			state.admitted.add(entry.id);
+
+			usedCores += resources.cores;
+			usedMemory += resources.memory;
+
+			logger.info("Admitted run " + entry.id + " (" + usedCores + "/" + availableCores + " cores, " + usedMemory
+					+ "/" + availableMemory + " GB memory in use)");
+		}
+
+		if (state.admitted.size() != initialAdmitted || state.queue.size() != initialQueued) {
+			updateState();
+		}
+	}
+
+	@Override
+	synchronized public void setup(String id, RunDescription description) {
+		setupAll(Collections.singletonMap(id, description));
+	}
+
+	@Override
+	synchronized public void setupAll(Map<String, RunDescription> descriptions) {
+		delegate.setupAll(descriptions);
+
+		for (Map.Entry<String, RunDescription> entry : descriptions.entrySet()) {
+			RunDescription description = entry.getValue();
+
+			Resources resources = new Resources();
+			resources.cores = description.cores == null ? 1 : description.cores;
+			resources.memory = description.memory == null ? 0.0 : description.memory;
+			resources.priority = description.priority;
+
+			state.resources.put(entry.getKey(), resources);
+		}
+
+		updateState();
+	}
+
+	@Override
+	synchronized public void remove(String id) {
+		if (findEntry(id) != null) {
+			throw new IllegalStateException("Run " + id + " is queued");
+		}
+
+		delegate.remove(id);
+
+		state.resources.remove(id);
+		state.admitted.remove(id);
+		updateState();
+	}
+
+	@Override
+	synchronized public void start(String id) {
+		if (!delegate.exists(id)) {
+			throw new IllegalStateException("Run " + id + " does not exist");
+		}
+
+		if (isRunning(id)) {
+			throw new IllegalStateException("Run " + id + " is already running or queued");
+		}
+
+		Resources resources = getResources(id);
+
+		if (resources.cores > availableCores || resources.memory > availableMemory) {
+			throw new IllegalArgumentException("Run " + id + " requests more resources than available (" + resources.cores
+					+ " cores, " + resources.memory + " GB memory)");
+		}
+
+		QueueEntry entry = new QueueEntry();
+		entry.id = id;
+		entry.priority = resources.priority;
+		entry.sequence = state.sequence++;
+
+		state.queue.add(entry);
+		updateState();
+
+		logger.info("Queued run " + id + " with priority " + entry.priority);
+		schedule();
+	}
+
+	@Override
+	synchronized public void stop(String id) {
+		QueueEntry entry = findEntry(id);
+
+		if (entry != null) {
+			state.queue.remove(entry);
+			updateState();
+
+			logger.info("Removed run " + id + " from the queue");
+			return;
+		}
+
+		delegate.stop(id);
+		schedule();
+	}
+
+	@Override
+	synchronized public boolean isRunning(String id) {
+		if (findEntry(id) != null) {
+			schedule();
+
+			if (findEntry(id) != null) {
+				return true;
+			}
+		}
+
+		return delegate.isRunning(id);
+	}
+
+	@Override
+	synchronized public Map<String, RunStatus> getStatuses(Collection<String> ids) {
+		schedule();
+
+		Map<String, RunStatus> statuses = delegate.getStatuses(ids);
+
+		for (QueueEntry entry : state.queue) {
+			if (statuses.containsKey(entry.id)) {
+				statuses.put(entry.id, RunStatus.QUEUED);
+			}
+		}
+
+		return statuses;
+	}
+
+	@Override
+	synchronized public boolean isQueued(String id) {
+		schedule();
+		return findEntry(id) != null;
+	}
+
+	@Override
+	synchronized public Collection<String> getQueuedIds() {
+		schedule();
+		state.queue.sort(QUEUE_ORDER);
+		return Collections.unmodifiableList(state.queue.stream().map(e -> e.id).collect(Collectors.toList()));
+	}
+
+	@Override
+	public boolean exists(String id) {
+		return delegate.exists(id);
+	}
+
+	@Override
+	public FileObject getRootDirectory() {
+		return delegate.getRootDirectory();
+	}
+
+	@Override
+	public FileObject getRunDirectory(String id) {
+		return delegate.getRunDirectory(id);
+	}
+
+	@Override
+	public LocalCopy getLocalCopy(FileObject file) {
+		return delegate.getLocalCopy(file);
+	}
+
+	@Override
+	public Collection<String> getAvailableIds() {
+		return delegate.getAvailableIds();
+	}
+
+	// Higher priority first; Integer.compare avoids the overflow of negating
+	// Integer.MIN_VALUE
+	final private static Comparator<QueueEntry> QUEUE_ORDER = ((Comparator<QueueEntry>) (a,
+			b) -> Integer.compare(b.priority, a.priority)).thenComparingLong(e -> e.sequence);
+
+	static private class Resources {
+		public int cores = 1;
+		public double memory = 0.0;
+		public int priority = 0;
+	}
+
+	static private class QueueEntry {
+		public String id;
+		public int priority;
+		public long sequence;
+	}
+
+	static private class QueueState {
+		public List<QueueEntry> queue = new LinkedList<>();
+		public Set<String> admitted = new HashSet<>();
+		public Map<String, Resources> resources = new HashMap<>();
+		public long sequence = 0;
+	}
+}
@@ -4,7 +4,14 @@ import java.util.LinkedList;
 import java.util.List;
 
 public class RunDescription {
+	// Memory the run needs in GB, requested from batch systems and counted against
+	// the memory budget of a QueuedRunEnvironment
 	public Double memory = null;
+
+	// Number of cores the run needs
+	public Integer cores = null;
+
+	public int priority = 0;
 	public List<String> classPath = new LinkedList<>();
 	public String entryPoint = null;
 
@@ -1,6 +1,9 @@
 package ch.ethz.matsim.run_tools.framework.run;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.commons.vfs2.FileObject;
 
@@ -11,15 +14,69 @@ public interface RunEnvironment {
 
 	void setup(String id, RunDescription description);
 
+	/**
+	 * Sets up several runs at once. Environments that persist their state
+	 * override this to write it only once.
+	 */
+	default void setupAll(Map<String, RunDescription> descriptions) {
+		for (Map.Entry<String, RunDescription> entry : descriptions.entrySet()) {
+			setup(entry.getKey(), entry.getValue());
+		}
+	}
+
 	void remove(String id);
 
 	boolean isRunning(String id);
 
+	/**
+	 * Returns whether the run has been started but is still waiting for
+	 * resources. Environments without a queue never queue runs.
+	 */
+	default boolean isQueued(String id) {
+		return false;
+	}
+
+	/**
+	 * Returns the status of every given run, MISSING for unknown ones. By default,
+	 * the runs are queried one by one. Environments that can query many runs at
+	 * once override this.
+	 */
+	default Map<String, RunStatus> getStatuses(Collection<String> ids) {
+		Map<String, RunStatus> statuses = new HashMap<>();
+
+		for (String id : ids) {
+			if (!exists(id)) {
+				statuses.put(id, RunStatus.MISSING);
+			} else if (isQueued(id)) {
+				statuses.put(id, RunStatus.QUEUED);
+			} else if (isRunning(id)) {
+				statuses.put(id, RunStatus.RUNNING);
+			} else {
+				statuses.put(id, RunStatus.IDLE);
+			}
+		}
+
+		return statuses;
+	}
+
 	boolean exists(String id);
 
 	FileObject getRootDirectory();
 
 	FileObject getRunDirectory(String id);
 
+	/**
+	 * Returns a file below the root directory for reading, which may be a local
+	 * copy of a remote file. Without a cache, the file itself is returned. The
+	 * copy needs to be closed once it has been read.
+	 */
+	default LocalCopy getLocalCopy(FileObject file) {
+		return new LocalCopy(file);
+	}
+
 	Collection<String> getAvailableIds();
+
+	default Collection<String> getQueuedIds() {
+		return Collections.emptyList();
+	}
 }
@@ -0,0 +1,11 @@
+package ch.ethz.matsim.run_tools.framework.run;
+
+public enum RunStatus {
+	MISSING, IDLE, QUEUED, RUNNING,
+
+	/**
+	 * Not running, and the last execution has ended with an error. Only reported
+	 * by environments that know the result of a run, otherwise such runs are IDLE.
+	 */
+	FAILED
+}
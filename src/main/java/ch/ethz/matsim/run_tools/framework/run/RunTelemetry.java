@@ -0,0 +1,172 @@
+package ch.ethz.matsim.run_tools.framework.run;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import ch.ethz.matsim.run_tools.framework.run.ProcessSupervisor.SupervisedProcess;
+
+/**
+ * Samples CPU, memory and I/O of all live runs of a LocalLinuxRunEnvironment
+ * from /proc at a fixed interval. Every run gets a TelemetrySeries; once a run
+ * has finished, the summary is written to telemetry.json in its run directory.
+ */
+public class RunTelemetry {
+	final private Logger logger = Logger.getLogger(RunTelemetry.class);
+
+	// USER_HZ, the unit of the CPU times in /proc/[pid]/stat, is 100 on Linux
+	final private static double TICKS_PER_SECOND = 100.0;
+
+	final private ObjectMapper objectMapper = new ObjectMapper();
+
+	final private LocalLinuxRunEnvironment environment;
+	final private long interval;
+	final private int capacity;
+
+	final private Map<String, TelemetrySeries> series = new HashMap<>();
+	final private Map<String, SupervisedProcess> processes = new HashMap<>();
+	final private Map<String, Long> lastTicks = new HashMap<>();
+	final private Map<String, Long> lastTimes = new HashMap<>();
+
+	// Runs whose process has ended but has not been cleaned up by the environment
+	final private Map<String, Integer> finishedPids = new HashMap<>();
+
+	private ScheduledExecutorService executor = null;
+
+	public RunTelemetry(LocalLinuxRunEnvironment environment, long interval, int capacity) {
+		this.environment = environment;
+		this.interval = interval;
+		this.capacity = capacity;
+
+		objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
+	}
+
+	public RunTelemetry(LocalLinuxRunEnvironment environment) {
+		this(environment, 5000, 720);
+	}
+
+	synchronized public void start() {
+		if (executor == null) {
+			executor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "telemetry");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+			executor.scheduleWithFixedDelay(this::sample, 0, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	synchronized public void stop() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Returns the series of a run that is running or has been running while the
+	 * telemetry was active, or null.
+	 */
+	synchronized public TelemetrySeries getSeries(String id) {
+		return series.get(id);
+	}
+
+	synchronized void sample() {
+		try {
+			Map<String, SupervisedProcess> current = environment.getProcesses();
+
+			finishedPids.keySet().retainAll(current.keySet());
+
+			for (String id : new HashSet<>(processes.keySet())) {
+				SupervisedProcess process = processes.get(id);
+				SupervisedProcess currentProcess = current.get(id);
+
+				if (currentProcess == null || currentProcess.pid != process.pid) {
+					finish(id);
+				}
+			}
+
+			for (Map.Entry<String, SupervisedProcess> entry : current.entrySet()) {
+				String id = entry.getKey();
+				SupervisedProcess process = entry.getValue();
+
+				if (finishedPids.containsKey(id) && finishedPids.get(id) == process.pid) {
+					continue;
+				}
+
+				if (!processes.containsKey(id)) {
+					processes.put(id, process);
+					series.put(id, new TelemetrySeries(capacity));
+					lastTicks.remove(id);
+				}
+
+				if (!ProcFileSystem.isAlive(process.pid, process.startTime)) {
+					finish(id);
+					finishedPids.put(id, process.pid);
+				} else {
+					sample(id, process.pid);
+				}
+			}
+		} catch (RuntimeException e) {
+			logger.warn("Error while sampling telemetry", e);
+		}
+	}
+
+	private void sample(String id, int pid) {
+		String[] stat = ProcFileSystem.readStat(pid);
+		Map<String, Long> status = ProcFileSystem.readValues(pid, "status");
+
+		if (stat == null || status == null) {
+			return;
+		}
+
+		// The I/O counters are only readable for processes of the same user
+		Map<String, Long> io = ProcFileSystem.readValues(pid, "io");
+
+		long time = System.currentTimeMillis();
+		long ticks = Long.parseLong(stat[11]) + Long.parseLong(stat[12]);
+		double cpu = 0.0;
+
+		if (lastTicks.containsKey(id)) {
+			double seconds = (time - lastTimes.get(id)) / 1000.0;
+			cpu = seconds > 0.0 ? (ticks - lastTicks.get(id)) / TICKS_PER_SECOND / seconds : 0.0;
+		}
+
+		lastTicks.put(id, ticks);
+		lastTimes.put(id, time);
+
+		long rss = status.getOrDefault("VmRSS", 0L) * 1024;
+		long readBytes = io == null ? -1 : io.getOrDefault("read_bytes", -1L);
+		long writeBytes = io == null ? -1 : io.getOrDefault("write_bytes", -1L);
+
+		series.get(id).add(time, cpu, rss, readBytes, writeBytes);
+	}
+
+	private void finish(String id) {
+		TelemetrySeries finished = series.get(id);
+		processes.remove(id);
+		lastTicks.remove(id);
+		lastTimes.remove(id);
+
+		File directory = environment.getDirectory(id);
+
+		if (finished != null && directory.exists()) {
+			try {
+				objectMapper.writeValue(new File(directory, "telemetry.json"), finished.getSummary());
+			} catch (IOException e) {
+				logger.warn("Could not write telemetry of run " + id, e);
+			}
+		}
+	}
+}
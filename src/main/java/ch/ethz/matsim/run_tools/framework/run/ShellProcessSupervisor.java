@@ -0,0 +1,156 @@
+package ch.ethz.matsim.run_tools.framework.run;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Starts runs through a generated runner.sh and supervises them using ps and
+ * kill. Every call forks a process, see DirectProcessSupervisor for the
+ * fork-free alternative.
+ */
+public class ShellProcessSupervisor implements ProcessSupervisor {
+	@Override
+	public SupervisedProcess start(String id, File directory, List<String> command, File outputFile,
+			File errorFile) {
+		String path = directory.getAbsolutePath();
+
+		List<String> shellCommand = new LinkedList<>(command);
+		shellCommand.add("1>");
+		shellCommand.add(outputFile.toString());
+		shellCommand.add("2>");
+		shellCommand.add(errorFile.toString());
+		shellCommand.add("&");
+		String javaCommand = String.join(" ", shellCommand);
+
+		File pidPath = new File(path, "simulation.pid");
+		File runScriptPath = new File(path, "runner.sh");
+
+		String runScript = "cd " + path + "\n" + javaCommand + "\necho $! > " + pidPath;
+
+		try {
+			OutputStream outputStream = new FileOutputStream(runScriptPath);
+			OutputStreamWriter streamWriter = new OutputStreamWriter(outputStream);
+			streamWriter.write(runScript);
+			streamWriter.flush();
+			streamWriter.close();
+		} catch (FileNotFoundException e) {
+			throw new RuntimeException("Error while creating the run file for run " + id);
+		} catch (IOException e) {
+			throw new RuntimeException("Error while writing the run file for run " + id);
+		}
+
+		// Start.
+		try {
+			Runtime.getRuntime().exec("sh " + runScriptPath);
+		} catch (IOException e) {
+			throw new RuntimeException("Error while running the run script for run " + id);
+		}
+
+		long failTime = System.currentTimeMillis() + 10 * 1000;
+
+		while (!pidPath.exists()) {
+			if (System.currentTimeMillis() > failTime) {
+				throw new RuntimeException("Unable to get PID for run " + id + ". Possibly still running.");
+			}
+
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				throw new RuntimeException("Interrupted while getting PID for run " + id + ". Possibly still running.");
+			}
+		}
+
+		try {
+			InputStream inputStream = new FileInputStream(pidPath);
+			BufferedReader streamReader = new BufferedReader(new InputStreamReader(inputStream));
+			int pid = Integer.parseInt(streamReader.readLine());
+			streamReader.close();
+
+			return new SupervisedProcess(pid, null);
+		} catch (FileNotFoundException e) {
+			throw new IllegalStateException();
+		} catch (IOException e) {
+			throw new RuntimeException("Error while reading PID for run " + id);
+		}
+	}
+
+	@Override
+	public boolean isAlive(int pid, Long startTime) {
+		try {
+			Process process = Runtime.getRuntime().exec("ps " + pid);
+			process.waitFor();
+
+			return process.exitValue() == 0;
+		} catch (IOException | InterruptedException e) {
+			throw new RuntimeException("Error while looking for PID " + pid);
+		}
+	}
+
+	@Override
+	public Set<Integer> findAlive(Map<Integer, Long> processes) {
+		Set<Integer> alive = new HashSet<>();
+
+		if (processes.size() == 0) {
+			return alive;
+		}
+
+		String pids = String.join(",",
+				processes.keySet().stream().map(String::valueOf).collect(Collectors.toList()));
+
+		try {
+			Process process = Runtime.getRuntime().exec(new String[] { "ps", "-o", "pid=", "-p", pids });
+			BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().length() > 0) {
+					alive.add(Integer.parseInt(line.trim()));
+				}
+			}
+
+			reader.close();
+			process.waitFor();
+		} catch (IOException | InterruptedException | NumberFormatException e) {
+			throw new RuntimeException("Error while looking for PIDs " + pids);
+		}
+
+		return alive;
+	}
+
+	@Override
+	public void stop(int pid, Long startTime) {
+		try {
+			Runtime.getRuntime().exec("kill -9 " + pid);
+		} catch (IOException e) {
+			throw new RuntimeException("Error while killing process with pid " + pid);
+		}
+
+		long failTime = System.currentTimeMillis() + 10 * 1000;
+
+		while (isAlive(pid, startTime)) {
+			if (System.currentTimeMillis() > failTime) {
+				throw new RuntimeException("Unable to stop process with pid " + pid);
+			}
+
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				throw new RuntimeException("Interrupted while waiting for process " + pid + " to end.");
+			}
+		}
+	}
+}
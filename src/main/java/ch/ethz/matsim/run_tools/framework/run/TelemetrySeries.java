@@ -0,0 +1,135 @@
+package ch.ethz.matsim.run_tools.framework.run;
+
+/**
+ * Fixed-size ring buffer of resource samples of one run, stored in primitive
+ * arrays. Peaks and averages are tracked over all samples, including the ones
+ * that have already been overwritten.
+ */
+public class TelemetrySeries {
+	final private long[] times;
+	final private double[] cpu;
+	final private long[] rss;
+	final private long[] readBytes;
+	final private long[] writeBytes;
+
+	private int next = 0;
+	private long numberOfSamples = 0;
+	private long firstTime = 0;
+
+	private double cpuSum = 0.0;
+	private double cpuPeak = 0.0;
+	private double rssSum = 0.0;
+	private long rssPeak = 0;
+
+	public TelemetrySeries(int capacity) {
+		this.times = new long[capacity];
+		this.cpu = new double[capacity];
+		this.rss = new long[capacity];
+		this.readBytes = new long[capacity];
+		this.writeBytes = new long[capacity];
+	}
+
+	/**
+	 * Adds a sample; cpu is the number of busy cores, rss is in bytes and the I/O
+	 * counters are cumulative (or -1 if not available).
+	 */
+	synchronized public void add(long time, double cpu, long rss, long readBytes, long writeBytes) {
+		this.times[next] = time;
+		this.cpu[next] = cpu;
+		this.rss[next] = rss;
+		this.readBytes[next] = readBytes;
+		this.writeBytes[next] = writeBytes;
+
+		if (numberOfSamples == 0) {
+			firstTime = time;
+		}
+
+		next = (next + 1) % times.length;
+		numberOfSamples++;
+
+		cpuSum += cpu;
+		cpuPeak = Math.max(cpuPeak, cpu);
+		rssSum += rss;
+		rssPeak = Math.max(rssPeak, rss);
+	}
+
+	synchronized public int size() {
+		return (int) Math.min(numberOfSamples, times.length);
+	}
+
+	/**
+	 * Returns the buffered samples that are newer than the given time, oldest
+	 * first.
+	 */
+	synchronized public Sample[] getSamples(long since) {
+		int size = size();
+		int start = (next - size + times.length) % times.length;
+
+		int count = 0;
+		Sample[] samples = new Sample[size];
+
+		for (int i = 0; i < size; i++) {
+			int index = (start + i) % times.length;
+
+			if (times[index] > since) {
+				samples[count++] = new Sample(times[index], cpu[index], rss[index], readBytes[index],
+						writeBytes[index]);
+			}
+		}
+
+		Sample[] result = new Sample[count];
+		System.arraycopy(samples, 0, result, 0, count);
+		return result;
+	}
+
+	synchronized public Summary getSummary() {
+		Summary summary = new Summary();
+		summary.numberOfSamples = numberOfSamples;
+
+		if (numberOfSamples > 0) {
+			int last = (next - 1 + times.length) % times.length;
+
+			summary.averageCpu = cpuSum / numberOfSamples;
+			summary.peakCpu = cpuPeak;
+			summary.averageRss = (long) (rssSum / numberOfSamples);
+			summary.peakRss = rssPeak;
+			summary.readBytes = readBytes[last];
+			summary.writeBytes = writeBytes[last];
+			summary.startTime = firstTime;
+			summary.endTime = times[last];
+		}
+
+		return summary;
+	}
+
+	static public class Sample {
+		final public long time;
+		final public double cpu;
+		final public long rss;
+		final public long readBytes;
+		final public long writeBytes;
+
+		public Sample(long time, double cpu, long rss, long readBytes, long writeBytes) {
+			this.time = time;
+			this.cpu = cpu;
+			this.rss = rss;
+			this.readBytes = readBytes;
+			this.writeBytes = writeBytes;
+		}
+	}
+
+	static public class Summary {
+		public long numberOfSamples = 0;
+
+		public long startTime = 0;
+		public long endTime = 0;
+
+		public double averageCpu = 0.0;
+		public double peakCpu = 0.0;
+		public long averageRss = 0;
+		public long peakRss = 0;
+
+		public long readBytes = -1;
+		public long writeBytes = -1;
+	}
+}
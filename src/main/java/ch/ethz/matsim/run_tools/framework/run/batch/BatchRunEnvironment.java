@@ -0,0 +1,448 @@
+package ch.ethz.matsim.run_tools.framework.run.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.VFS;
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ch.ethz.matsim.run_tools.framework.run.RunDescription;
+import ch.ethz.matsim.run_tools.framework.run.RunEnvironment;
+import ch.ethz.matsim.run_tools.framework.run.RunStatus;
+
+/**
+ * RunEnvironment that submits runs as jobs to a batch system (SLURM-style) via
+ * the configured submit, status and cancel commands. The root directory needs
+ * to be on a file system that is shared with the compute nodes. Job states of
+ * all active runs are queried with one status command and cached for a short
+ * interval, so polling many runs does not hammer the scheduler.
+ * RunDescription.memory is requested from the scheduler in GB.
+ */
+public class BatchRunEnvironment implements RunEnvironment {
+	final private Logger logger = Logger.getLogger(BatchRunEnvironment.class);
+
+	final private TypeReference<HashMap<String, JobInfo>> environmentTypeReference = new TypeReference<HashMap<String, JobInfo>>() {
+	};
+
+	final private ObjectMapper objectMapper = new ObjectMapper();
+
+	final private File rootDirectory;
+	final private File environmentFile;
+	final private BatchSchedulerCommands commands;
+	final private long statusInterval;
+
+	final private Map<String, JobInfo> environment;
+
+	private Map<String, String> jobStates = new HashMap<>();
+	private long lastStatusUpdate = 0;
+
+	public BatchRunEnvironment(String stateFile, File rootDirectory, BatchSchedulerCommands commands,
+			long statusInterval) {
+		this.rootDirectory = rootDirectory;
+		this.commands = commands;
+		this.statusInterval = statusInterval;
+		this.environmentFile = new File(rootDirectory, stateFile);
+
+		try {
+			if (environmentFile.exists()) {
+				environment = objectMapper.readValue(environmentFile, environmentTypeReference);
+			} else {
+				environment = new HashMap<>();
+				updateEnvironment();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		logger.info("Initialized batch environment with " + environment.size() + " runs.");
+	}
+
+	public BatchRunEnvironment(String stateFile, File rootDirectory, BatchSchedulerCommands commands) {
+		this(stateFile, rootDirectory, commands, 5000);
+	}
+
+	private void updateEnvironment() {
+		try {
+			objectMapper.writeValue(environmentFile, environment);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private File getSimulationDirectory(String id) {
+		return new File(rootDirectory, id);
+	}
+
+	private void checkExists(String id) {
+		if (!environment.containsKey(id)) {
+			throw new IllegalStateException("Run " + id + " does not exist");
+		}
+	}
+
+	private List<String> execute(List<String> baseCommand, String argument) {
+		List<String> output = new LinkedList<>();
+
+		if (execute(baseCommand, argument, output) != 0) {
+			throw new RuntimeException(
+					"Command " + baseCommand + " " + argument + " failed: " + String.join("\n", output));
+		}
+
+		return output;
+	}
+
+	/**
+	 * Runs the command, collects its output and returns the exit code.
+	 */
+	private int execute(List<String> baseCommand, String argument, List<String> output) {
+		List<String> command = new LinkedList<>(baseCommand);
+		command.add(argument);
+
+		try {
+			ProcessBuilder builder = new ProcessBuilder(command);
+			builder.redirectErrorStream(true);
+			Process process = builder.start();
+
+			BufferedReader reader = new BufferedReader(
+					new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				output.add(line);
+			}
+
+			reader.close();
+			return process.waitFor();
+		} catch (IOException | InterruptedException e) {
+			throw new RuntimeException("Error while running " + command, e);
+		}
+	}
+
+	private static String quote(String argument) {
+		return "'" + argument.replace("'", "'\\''") + "'";
+	}
+
+	private void writeJobScript(String id, JobInfo info, File script) {
+		RunDescription description = info.description;
+		File path = getSimulationDirectory(id);
+		String prefix = commands.directivePrefix;
+
+		List<String> command = new LinkedList<>();
+		command.add("java");
+		command.addAll(description.vmArguments);
+		command.add("-cp");
+		command.add(String.join(":", description.classPath.stream().map(s -> new File(rootDirectory, s).toString())
+				.collect(Collectors.toList())));
+		command.add(description.entryPoint);
+		command.addAll(description.arguments);
+
+		StringBuilder builder = new StringBuilder();
+		builder.append("#!/bin/sh\n");
+		builder.append(prefix + " --job-name=" + id + "\n");
+		builder.append(prefix + " --output=" + new File(path, "batch.log") + "\n");
+
+		if (description.cores != null) {
+			builder.append(prefix + " --cpus-per-task=" + description.cores + "\n");
+		}
+
+		if (description.memory != null) {
+			builder.append(prefix + " --mem=" + (long) Math.ceil(description.memory * 1024.0) + "M\n");
+		}
+
+		builder.append("cd " + quote(path.getAbsolutePath()) + "\n");
+		builder.append("exec " + command.stream().map(BatchRunEnvironment::quote).collect(Collectors.joining(" ")));
+		builder.append(" > run_output.log 2> run_error.log\n");
+
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(script), StandardCharsets.UTF_8)) {
+			writer.write(builder.toString());
+		} catch (IOException e) {
+			throw new RuntimeException("Error while writing the job script for run " + id);
+		}
+	}
+
+	/**
+	 * Refreshes the states of all active jobs with a single status command, unless
+	 * the cached states are recent enough.
+	 */
+	private void updateJobStates() {
+		long now = System.currentTimeMillis();
+
+		if (now - lastStatusUpdate < statusInterval) {
+			return;
+		}
+
+		Set<String> jobIds = environment.values().stream().filter(i -> i.jobId != null).map(i -> i.jobId)
+				.collect(Collectors.toSet());
+		Map<String, String> states = new HashMap<>();
+
+		if (jobIds.size() > 0) {
+			queryJobStates(jobIds, states);
+		}
+
+		boolean changed = false;
+
+		for (Map.Entry<String, JobInfo> entry : environment.entrySet()) {
+			JobInfo info = entry.getValue();
+
+			if (info.jobId != null && !states.containsKey(info.jobId)) {
+				logger.info("Job " + info.jobId + " of run " + entry.getKey() + " has finished.");
+				info.jobId = null;
+				changed = true;
+			}
+		}
+
+		if (changed) {
+			updateEnvironment();
+		}
+
+		jobStates = states;
+		lastStatusUpdate = now;
+	}
+
+	/**
+	 * Adds the states of the given jobs that are still known to the scheduler.
+	 * Schedulers purge finished jobs after a while and then reject their ids, e.g.
+	 * squeue fails with "Invalid job id specified" even if only one of the ids is
+	 * unknown. In that case, every job is queried on its own and the rejected ones
+	 * count as finished. Any other failure is passed on.
+	 */
+	private void queryJobStates(Collection<String> jobIds, Map<String, String> states) {
+		List<String> output = new LinkedList<>();
+
+		if (execute(commands.status, String.join(",", jobIds), output) == 0) {
+			for (String line : output) {
+				String[] parts = line.trim().split("\\s+");
+
+				if (parts.length >= 2 && jobIds.contains(parts[0])) {
+					states.put(parts[0], parts[1]);
+				}
+			}
+
+			return;
+		}
+
+		boolean unknownJob = output.stream().anyMatch(line -> commands.unknownJobPattern.matcher(line).find());
+
+		if (!unknownJob) {
+			throw new RuntimeException("Status command " + commands.status + " failed: " + String.join("\n", output));
+		}
+
+		if (jobIds.size() > 1) {
+			for (String jobId : jobIds) {
+				queryJobStates(Collections.singleton(jobId), states);
+			}
+		} else {
+			logger.info("Job " + jobIds.iterator().next() + " is not known to the scheduler anymore.");
+		}
+	}
+
+	private RunStatus getStatus(String id) {
+		JobInfo info = environment.get(id);
+
+		if (info == null || !getSimulationDirectory(id).exists()) {
+			return RunStatus.MISSING;
+		}
+
+		if (info.jobId == null) {
+			return RunStatus.IDLE;
+		}
+
+		// Jobs submitted after the last status update are not known yet and count as
+		// running, as does any state that is not explicitly pending
+		String state = jobStates.get(info.jobId);
+		return commands.pendingStates.contains(state) ? RunStatus.QUEUED : RunStatus.RUNNING;
+	}
+
+	@Override
+	synchronized public void setup(String id, RunDescription description) {
+		setupAll(Collections.singletonMap(id, description));
+	}
+
+	@Override
+	synchronized public void setupAll(Map<String, RunDescription> descriptions) {
+		for (Map.Entry<String, RunDescription> entry : descriptions.entrySet()) {
+			String id = entry.getKey();
+			RunDescription description = entry.getValue();
+
+			if (environment.containsKey(id)) {
+				throw new IllegalStateException("Run " + id + " already exists");
+			}
+
+			if (getSimulationDirectory(id).exists()) {
+				throw new IllegalStateException("Run " + id + " is already initialized");
+			}
+
+			if (description.classPath == null || description.classPath.isEmpty()) {
+				throw new IllegalArgumentException("No classpath set for run " + id);
+			}
+
+			if (description.entryPoint == null) {
+				throw new IllegalArgumentException("No entry point set for run " + id);
+			}
+		}
+
+		for (Map.Entry<String, RunDescription> entry : descriptions.entrySet()) {
+			getSimulationDirectory(entry.getKey()).mkdir();
+
+			JobInfo info = new JobInfo();
+			info.description = entry.getValue();
+			environment.put(entry.getKey(), info);
+
+			logger.info("Set up run " + entry.getKey());
+		}
+
+		updateEnvironment();
+	}
+
+	@Override
+	synchronized public void remove(String id) {
+		checkExists(id);
+
+		if (isRunning(id)) {
+			throw new IllegalStateException("Run " + id + " is still running");
+		}
+
+		try {
+			FileUtils.deleteDirectory(getSimulationDirectory(id));
+		} catch (IOException e) {
+			throw new RuntimeException("Could not delete run " + id);
+		}
+
+		environment.remove(id);
+
+		updateEnvironment();
+		logger.info("Removed run " + id);
+	}
+
+	@Override
+	synchronized public void start(String id) {
+		checkExists(id);
+
+		if (isRunning(id)) {
+			throw new IllegalStateException("Run " + id + " is already running");
+		}
+
+		JobInfo info = environment.get(id);
+		File script = new File(getSimulationDirectory(id), "job.sh");
+		writeJobScript(id, info, script);
+
+		List<String> output = execute(commands.submit, script.getAbsolutePath());
+
+		if (output.size() == 0 || output.get(output.size() - 1).trim().length() == 0) {
+			throw new RuntimeException("Submission of run " + id + " did not return a job id");
+		}
+
+		info.jobId = output.get(output.size() - 1).trim().split("[\\s;]")[0];
+
+		updateEnvironment();
+		logger.info("Submitted run " + id + " as job " + info.jobId);
+	}
+
+	@Override
+	synchronized public void stop(String id) {
+		checkExists(id);
+
+		if (!isRunning(id)) {
+			throw new IllegalStateException("Run " + id + " is not running");
+		}
+
+		JobInfo info = environment.get(id);
+		execute(commands.cancel, info.jobId);
+
+		info.jobId = null;
+
+		updateEnvironment();
+		logger.info("Cancelled run " + id);
+	}
+
+	@Override
+	synchronized public boolean isRunning(String id) {
+		checkExists(id);
+		updateJobStates();
+
+		RunStatus status = getStatus(id);
+		return status == RunStatus.RUNNING || status == RunStatus.QUEUED;
+	}
+
+	@Override
+	synchronized public boolean isQueued(String id) {
+		checkExists(id);
+		updateJobStates();
+
+		return getStatus(id) == RunStatus.QUEUED;
+	}
+
+	@Override
+	synchronized public Map<String, RunStatus> getStatuses(Collection<String> ids) {
+		updateJobStates();
+
+		Map<String, RunStatus> statuses = new HashMap<>();
+
+		for (String id : ids) {
+			statuses.put(id, getStatus(id));
+		}
+
+		return statuses;
+	}
+
+	@Override
+	synchronized public boolean exists(String id) {
+		return environment.containsKey(id) && getSimulationDirectory(id).exists();
+	}
+
+	@Override
+	public FileObject getRootDirectory() {
+		try {
+			return VFS.getManager().resolveFile(rootDirectory.getAbsolutePath());
+		} catch (FileSystemException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public FileObject getRunDirectory(String id) {
+		try {
+			return VFS.getManager().resolveFile(getSimulationDirectory(id).getAbsolutePath());
+		} catch (FileSystemException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	synchronized public Collection<String> getAvailableIds() {
+		return Collections.unmodifiableCollection(new HashSet<>(environment.keySet()));
+	}
+
+	@Override
+	synchronized public Collection<String> getQueuedIds() {
+		updateJobStates();
+
+		return Collections.unmodifiableCollection(environment.keySet().stream()
+				.filter(id -> getStatus(id) == RunStatus.QUEUED).collect(Collectors.toList()));
+	}
+
+	static private class JobInfo {
+		public RunDescription description = null;
+		public String jobId = null;
+	}
+}
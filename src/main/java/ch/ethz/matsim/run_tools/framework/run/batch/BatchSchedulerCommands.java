@@ -0,0 +1,72 @@
+package ch.ethz.matsim.run_tools.framework.run.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Commands used by BatchRunEnvironment to talk to the batch system:
+ * 
+ * - submit is called with the path of the job script appended and must print
+ * the job id as the first token of its last output line (an optional ";cluster"
+ * suffix is stripped).
+ * 
+ * - status is called with a comma-separated list of job ids appended and must
+ * print one "[job id] [state]" line per job that is still known to the
+ * scheduler. Jobs that are not listed are considered finished. If the command
+ * fails with output matching unknownJobPattern, the ids are queried one by one
+ * and those that are rejected are considered finished as well.
+ * 
+ * - cancel is called with a single job id appended.
+ */
+public class BatchSchedulerCommands {
+	public List<String> submit = new LinkedList<>();
+	public List<String> status = new LinkedList<>();
+	public List<String> cancel = new LinkedList<>();
+
+	public String directivePrefix = "#SBATCH";
+
+	// States listed by the status command that mean the job is waiting, any other
+	// listed state counts as running
+	public List<String> pendingStates = Arrays.asList("PENDING", "CONFIGURING", "REQUEUED", "SUSPENDED");
+
+	// Output of a failed status command that means a job id has been purged by the
+	// scheduler, as printed by squeue
+	public Pattern unknownJobPattern = Pattern.compile("Invalid job id", Pattern.CASE_INSENSITIVE);
+
+	static public BatchSchedulerCommands slurm() {
+		BatchSchedulerCommands commands = new BatchSchedulerCommands();
+		commands.submit = Arrays.asList("sbatch", "--parsable");
+		commands.status = Arrays.asList("squeue", "--noheader", "--format=%i %T", "--jobs");
+		commands.cancel = Arrays.asList("scancel");
+		return commands;
+	}
+
+	/**
+	 * Stand-in scheduler that runs jobs as background processes on the local
+	 * machine. The script is extracted into the given directory, which also holds
+	 * the job bookkeeping.
+	 */
+	static public BatchSchedulerCommands local(File directory) {
+		File script = new File(directory, "local_scheduler.sh");
+
+		try (InputStream inputStream = BatchSchedulerCommands.class.getResourceAsStream("local_scheduler.sh")) {
+			directory.mkdirs();
+			Files.copy(inputStream, script.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not extract local scheduler to " + directory, e);
+		}
+
+		BatchSchedulerCommands commands = new BatchSchedulerCommands();
+		commands.submit = Arrays.asList("sh", script.getAbsolutePath(), "submit");
+		commands.status = Arrays.asList("sh", script.getAbsolutePath(), "status");
+		commands.cancel = Arrays.asList("sh", script.getAbsolutePath(), "cancel");
+		return commands;
+	}
+}
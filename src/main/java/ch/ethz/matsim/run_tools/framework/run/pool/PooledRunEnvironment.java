@@ -0,0 +1,587 @@
+package ch.ethz.matsim.run_tools.framework.run.pool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.VFS;
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ch.ethz.matsim.run_tools.framework.run.DirectProcessSupervisor;
+import ch.ethz.matsim.run_tools.framework.run.ProcessSupervisor;
+import ch.ethz.matsim.run_tools.framework.run.ProcessSupervisor.SupervisedProcess;
+import ch.ethz.matsim.run_tools.framework.run.RunDescription;
+import ch.ethz.matsim.run_tools.framework.run.RunEnvironment;
+import ch.ethz.matsim.run_tools.framework.run.RunStatus;
+import ch.ethz.matsim.run_tools.framework.run.pool.WorkerMessages.Request;
+import ch.ethz.matsim.run_tools.framework.run.pool.WorkerMessages.Response;
+
+/**
+ * RunEnvironment that executes runs in a pool of pre-started WarmWorker JVMs
+ * instead of starting a new JVM for every run, which saves the JVM startup and
+ * warm-up for many short simulations. A number of idle workers is kept ready
+ * in the "pool" subdirectory of the root directory; a worker that is busy with
+ * a run is replaced by a fresh one right away.
+ *
+ * Since the workers are already running, RunDescription.vmArguments and memory
+ * are ignored and the settings of the WorkerPoolDescription apply. The entry
+ * point must not rely on the process working directory: user.dir is set to the
+ * run directory, arguments pointing into it are made absolute and so is the
+ * output directory of MATSim configs passed as arguments, but other relative
+ * paths opened directly are resolved against the pool directory.
+ *
+ * The pool is only replenished when runs are started or stopped, so querying
+ * statuses never starts workers. Once a worker is done with a run, the result
+ * it wrote to run.exit is read, and runs that have thrown are reported as
+ * FAILED.
+ */
+public class PooledRunEnvironment implements RunEnvironment {
+	final private Logger logger = Logger.getLogger(PooledRunEnvironment.class);
+
+	final private ObjectMapper objectMapper = new ObjectMapper();
+
+	final private File rootDirectory;
+	final private File poolDirectory;
+	final private File environmentFile;
+	final private WorkerPoolDescription poolDescription;
+	final private ProcessSupervisor supervisor;
+
+	final private PoolState state;
+
+	// Runs that are waiting for an idle worker in start, reported as queued
+	final private Set<String> starting = new HashSet<>();
+
+	public PooledRunEnvironment(String stateFile, File rootDirectory, WorkerPoolDescription poolDescription,
+			ProcessSupervisor supervisor) {
+		this.rootDirectory = rootDirectory;
+		this.poolDirectory = new File(rootDirectory, "pool");
+		this.environmentFile = new File(rootDirectory, stateFile);
+		this.poolDescription = poolDescription;
+		this.supervisor = supervisor;
+
+		poolDirectory.mkdirs();
+
+		try {
+			if (environmentFile.exists()) {
+				state = objectMapper.readValue(environmentFile, PoolState.class);
+			} else {
+				state = new PoolState();
+				updateEnvironment();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		logger.info("Initialized pooled environment with " + state.runs.size() + " runs and " + state.workers.size()
+				+ " workers.");
+		maintainPool();
+	}
+
+	public PooledRunEnvironment(String stateFile, File rootDirectory, WorkerPoolDescription poolDescription) {
+		this(stateFile, rootDirectory, poolDescription, new DirectProcessSupervisor());
+	}
+
+	public PooledRunEnvironment(String stateFile, File rootDirectory) {
+		this(stateFile, rootDirectory, new WorkerPoolDescription());
+	}
+
+	private void updateEnvironment() {
+		try {
+			objectMapper.writeValue(environmentFile, state);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private File getSimulationDirectory(String id) {
+		return new File(rootDirectory, id);
+	}
+
+	private File getPortFile(String workerId) {
+		return new File(poolDirectory, workerId + ".port");
+	}
+
+	private void checkExists(String id) {
+		if (!state.runs.containsKey(id)) {
+			throw new IllegalStateException("Run " + id + " does not exist");
+		}
+	}
+
+	private Response query(String workerId, Request request) throws IOException {
+		int port = Integer.parseInt(new String(Files.readAllBytes(getPortFile(workerId).toPath())).trim());
+
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			OutputStream outputStream = socket.getOutputStream();
+			outputStream.write(objectMapper.writeValueAsBytes(request));
+			outputStream.write('\n');
+			outputStream.flush();
+
+			String line = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))
+					.readLine();
+
+			if (line == null) {
+				throw new IOException("Connection closed by worker " + workerId);
+			}
+
+			return objectMapper.readValue(line, Response.class);
+		}
+	}
+
+	/**
+	 * Returns the id of the run the worker is busy with, an empty string for an
+	 * idle worker, and null if the worker is dead or not ready yet.
+	 */
+	private String getWorkerStatus(String workerId) {
+		WorkerInfo worker = state.workers.get(workerId);
+
+		if (worker == null || !supervisor.isAlive(worker.pid, worker.startTime)) {
+			return null;
+		}
+
+		if (!getPortFile(workerId).exists()) {
+			return null;
+		}
+
+		Request request = new Request();
+		request.command = WorkerMessages.STATUS;
+
+		try {
+			Response response = query(workerId, request);
+			return response.runningId == null ? "" : response.runningId;
+		} catch (IOException e) {
+			// The worker may be shutting down after its last run
+			return null;
+		}
+	}
+
+	/**
+	 * Forgets about dead workers and starts new ones until enough workers are idle
+	 * or starting up.
+	 */
+	private void maintainPool() {
+		for (Map.Entry<String, RunInfo> entry : state.runs.entrySet()) {
+			if (entry.getValue().worker != null) {
+				updateRun(entry.getKey(), entry.getValue());
+			}
+		}
+
+		int available = 0;
+
+		for (String workerId : new LinkedList<>(state.workers.keySet())) {
+			WorkerInfo worker = state.workers.get(workerId);
+
+			if (!supervisor.isAlive(worker.pid, worker.startTime)) {
+				state.workers.remove(workerId);
+				getPortFile(workerId).delete();
+				logger.info("Worker " + workerId + " has exited.");
+			} else if (!state.runs.values().stream().anyMatch(r -> workerId.equals(r.worker))) {
+				available++;
+			}
+		}
+
+		while (available < poolDescription.numberOfIdleWorkers) {
+			startWorker();
+			available++;
+		}
+
+		updateEnvironment();
+	}
+
+	private void startWorker() {
+		String workerId = "worker" + state.workerSequence++;
+
+		List<String> command = new LinkedList<>();
+		command.add("java");
+		command.addAll(poolDescription.vmArguments);
+		command.add("-cp");
+		command.add(String.join(File.pathSeparator, poolDescription.classPath));
+		command.add(WarmWorker.class.getName());
+		command.add(poolDirectory.getAbsolutePath());
+		command.add(workerId);
+		command.add(String.valueOf(poolDescription.maximumNumberOfRuns));
+		command.add(String.valueOf(poolDescription.memoryThreshold));
+
+		SupervisedProcess process = supervisor.start(workerId, poolDirectory, command,
+				new File(poolDirectory, workerId + "_output.log"), new File(poolDirectory, workerId + "_error.log"));
+
+		WorkerInfo worker = new WorkerInfo();
+		worker.pid = process.pid;
+		worker.startTime = process.startTime;
+		state.workers.put(workerId, worker);
+
+		logger.info("Started worker " + workerId + " with PID " + process.pid);
+	}
+
+	/**
+	 * Releases the worker of the run once the worker has exited or reports that
+	 * it is not busy with the run anymore, and records the result of the run.
+	 * Returns whether the run is still running.
+	 */
+	private boolean updateRun(String id, RunInfo info) {
+		String workerStatus = getWorkerStatus(info.worker);
+
+		if (id.equals(workerStatus)) {
+			return true;
+		}
+
+		WorkerInfo worker = state.workers.get(info.worker);
+
+		if (workerStatus == null && worker != null && supervisor.isAlive(worker.pid, worker.startTime)) {
+			// The worker is alive but cannot be reached right now, e.g. while exiting
+			return true;
+		}
+
+		String workerId = info.worker;
+		info.worker = null;
+		info.failure = readFailure(id);
+
+		if (info.failure == null) {
+			logger.info("Run " + id + " has finished on worker " + workerId);
+		} else {
+			logger.error("Run " + id + " has failed on worker " + workerId + ": " + info.failure);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Returns the failure that the worker has written to run.exit, or null if the
+	 * run has finished without an error.
+	 */
+	private String readFailure(String id) {
+		File exitFile = new File(getSimulationDirectory(id), "run.exit");
+
+		if (!exitFile.exists()) {
+			return "Worker exited without a result";
+		}
+
+		try {
+			String result = new String(Files.readAllBytes(exitFile.toPath()), StandardCharsets.UTF_8).trim();
+
+			if (result.equals("0")) {
+				return null;
+			}
+
+			return result.startsWith("1 ") ? result.substring(2) : result;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private RunStatus getStatus(String id) {
+		RunInfo info = state.runs.get(id);
+
+		if (info == null || !getSimulationDirectory(id).exists()) {
+			return RunStatus.MISSING;
+		}
+
+		if (starting.contains(id)) {
+			return RunStatus.QUEUED;
+		}
+
+		if (info.worker != null) {
+			if (updateRun(id, info)) {
+				return RunStatus.RUNNING;
+			}
+
+			updateEnvironment();
+		}
+
+		return info.failure == null ? RunStatus.IDLE : RunStatus.FAILED;
+	}
+
+	@Override
+	synchronized public void setup(String id, RunDescription description) {
+		setupAll(Collections.singletonMap(id, description));
+	}
+
+	@Override
+	synchronized public void setupAll(Map<String, RunDescription> descriptions) {
+		for (Map.Entry<String, RunDescription> entry : descriptions.entrySet()) {
+			String id = entry.getKey();
+			RunDescription description = entry.getValue();
+
+			if (state.runs.containsKey(id)) {
+				throw new IllegalStateException("Run " + id + " already exists");
+			}
+
+			if (getSimulationDirectory(id).exists()) {
+				throw new IllegalStateException("Run " + id + " is already initialized");
+			}
+
+			if (description.classPath == null || description.classPath.isEmpty()) {
+				throw new IllegalArgumentException("No classpath set for run " + id);
+			}
+
+			if (description.entryPoint == null) {
+				throw new IllegalArgumentException("No entry point set for run " + id);
+			}
+
+			if (description.vmArguments.size() > 0 || description.memory != null) {
+				logger.warn("VM arguments and memory of run " + id + " are ignored in the worker pool");
+			}
+		}
+
+		for (Map.Entry<String, RunDescription> entry : descriptions.entrySet()) {
+			getSimulationDirectory(entry.getKey()).mkdir();
+
+			RunInfo info = new RunInfo();
+			info.description = entry.getValue();
+			state.runs.put(entry.getKey(), info);
+
+			logger.info("Set up run " + entry.getKey());
+		}
+
+		updateEnvironment();
+	}
+
+	@Override
+	synchronized public void remove(String id) {
+		checkExists(id);
+
+		if (isRunning(id)) {
+			throw new IllegalStateException("Run " + id + " is still running");
+		}
+
+		try {
+			FileUtils.deleteDirectory(getSimulationDirectory(id));
+		} catch (IOException e) {
+			throw new RuntimeException("Could not delete run " + id);
+		}
+
+		state.runs.remove(id);
+
+		updateEnvironment();
+		logger.info("Removed run " + id);
+	}
+
+	/**
+	 * Hands the run to an idle worker, waiting for up to the startup timeout if
+	 * all workers are busy or still starting up. The environment is not locked
+	 * while waiting, so other runs can be queried and started in the meantime.
+	 */
+	@Override
+	public void start(String id) {
+		Request request = new Request();
+
+		synchronized (this) {
+			checkExists(id);
+
+			if (isRunning(id)) {
+				throw new IllegalStateException("Run " + id + " is already running or starting");
+			}
+
+			RunInfo info = state.runs.get(id);
+			File path = getSimulationDirectory(id);
+			new File(path, "run.exit").delete();
+			info.failure = null;
+
+			request.command = WorkerMessages.RUN;
+			request.id = id;
+			request.directory = path.getAbsolutePath();
+			request.classPath = info.description.classPath.stream()
+					.map(s -> new File(rootDirectory, s).getAbsolutePath()).collect(Collectors.toList());
+			request.entryPoint = info.description.entryPoint;
+			request.arguments = info.description.arguments;
+
+			starting.add(id);
+		}
+
+		try {
+			long failTime = System.currentTimeMillis() + poolDescription.startupTimeout;
+
+			while (System.currentTimeMillis() < failTime) {
+				if (tryStart(id, request)) {
+					return;
+				}
+
+				try {
+					// Workers are still starting up
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		} finally {
+			synchronized (this) {
+				starting.remove(id);
+			}
+		}
+
+		throw new IllegalStateException("No worker became available to start run " + id);
+	}
+
+	synchronized private boolean tryStart(String id, Request request) {
+		RunInfo info = state.runs.get(id);
+
+		if (info == null) {
+			throw new IllegalStateException("Run " + id + " does not exist");
+		}
+
+		if (!starting.contains(id)) {
+			// The run has been stopped while waiting for a worker
+			return true;
+		}
+
+		maintainPool();
+
+		for (String workerId : state.workers.keySet()) {
+			boolean assigned = state.runs.values().stream().anyMatch(r -> workerId.equals(r.worker));
+
+			if (!assigned && "".equals(getWorkerStatus(workerId))) {
+				try {
+					Response response = query(workerId, request);
+
+					if (response.error == null) {
+						info.worker = workerId;
+						maintainPool();
+
+						logger.info("Started run " + id + " on worker " + workerId);
+						return true;
+					}
+
+					logger.warn("Worker " + workerId + " rejected run " + id + ": " + response.error);
+				} catch (IOException e) {
+					logger.warn("Worker " + workerId + " is not reachable");
+				}
+			}
+		}
+
+		return false;
+	}
+
+	@Override
+	synchronized public void stop(String id) {
+		checkExists(id);
+
+		if (!isRunning(id)) {
+			throw new IllegalStateException("Run " + id + " is not running");
+		}
+
+		if (starting.remove(id)) {
+			logger.info("Stopped run " + id + " before it was handed to a worker");
+			return;
+		}
+
+		// A run cannot be stopped safely inside the JVM, so its worker is replaced
+		RunInfo info = state.runs.get(id);
+		WorkerInfo worker = state.workers.get(info.worker);
+		supervisor.stop(worker.pid, worker.startTime);
+
+		info.worker = null;
+		maintainPool();
+
+		logger.info("Stopped run " + id);
+	}
+
+	@Override
+	synchronized public boolean isRunning(String id) {
+		checkExists(id);
+
+		RunStatus status = getStatus(id);
+		return status == RunStatus.RUNNING || status == RunStatus.QUEUED;
+	}
+
+	@Override
+	synchronized public boolean isQueued(String id) {
+		checkExists(id);
+		return starting.contains(id);
+	}
+
+	@Override
+	synchronized public Map<String, RunStatus> getStatuses(Collection<String> ids) {
+		Map<String, RunStatus> statuses = new HashMap<>();
+
+		for (String id : ids) {
+			statuses.put(id, getStatus(id));
+		}
+
+		return statuses;
+	}
+
+	@Override
+	synchronized public boolean exists(String id) {
+		return state.runs.containsKey(id) && getSimulationDirectory(id).exists();
+	}
+
+	@Override
+	public FileObject getRootDirectory() {
+		try {
+			return VFS.getManager().resolveFile(rootDirectory.getAbsolutePath());
+		} catch (FileSystemException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public FileObject getRunDirectory(String id) {
+		try {
+			return VFS.getManager().resolveFile(getSimulationDirectory(id).getAbsolutePath());
+		} catch (FileSystemException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	synchronized public Collection<String> getAvailableIds() {
+		return Collections.unmodifiableCollection(new HashSet<>(state.runs.keySet()));
+	}
+
+	@Override
+	synchronized public Collection<String> getQueuedIds() {
+		return Collections.unmodifiableCollection(new HashSet<>(starting));
+	}
+
+	/**
+	 * Stops all idle workers, e.g. when the driver shuts down. Busy workers keep
+	 * running until their run has finished.
+	 */
+	synchronized public void shutdownIdleWorkers() {
+		for (String workerId : new LinkedList<>(state.workers.keySet())) {
+			if (!state.runs.values().stream().anyMatch(r -> workerId.equals(r.worker))) {
+				WorkerInfo worker = state.workers.remove(workerId);
+				supervisor.stop(worker.pid, worker.startTime);
+				getPortFile(workerId).delete();
+			}
+		}
+
+		updateEnvironment();
+	}
+
+	static private class RunInfo {
+		public RunDescription description = null;
+		public String worker = null;
+		public String failure = null;
+	}
+
+	static private class WorkerInfo {
+		public int pid;
+		public Long startTime = null;
+	}
+
+	static private class PoolState {
+		public Map<String, RunInfo> runs = new HashMap<>();
+		public Map<String, WorkerInfo> workers = new HashMap<>();
+		public int workerSequence = 0;
+	}
+}
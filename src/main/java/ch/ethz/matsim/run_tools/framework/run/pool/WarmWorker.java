@@ -0,0 +1,325 @@
+package ch.ethz.matsim.run_tools.framework.run.pool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ch.ethz.matsim.run_tools.framework.run.pool.WorkerMessages.Request;
+import ch.ethz.matsim.run_tools.framework.run.pool.WorkerMessages.Response;
+
+/**
+ * Long-lived JVM that executes runs of a PooledRunEnvironment one after the
+ * other. Every run gets its own class loader (so static state does not leak
+ * between runs), its own stdout/stderr files and its run directory as user.dir.
+ * The output directory of MATSim configs that are passed from the run directory
+ * is made absolute, as it would otherwise end up in the pool directory.
+ * After a configurable number of runs, or if the heap is still filled above a
+ * threshold after a run, the worker exits and is replaced by the pool.
+ *
+ * Usage: WarmWorker [pool directory] [worker id] [maximum runs] [memory
+ * threshold]
+ */
+public class WarmWorker {
+	final private ObjectMapper objectMapper = new ObjectMapper();
+
+	final private int maximumNumberOfRuns;
+	final private double memoryThreshold;
+	final private File exitFile;
+
+	final private PrintStream originalOut = System.out;
+	final private PrintStream originalErr = System.err;
+	final private String originalDirectory = System.getProperty("user.dir");
+
+	private volatile String currentId = null;
+	private int numberOfRuns = 0;
+
+	public WarmWorker(int maximumNumberOfRuns, double memoryThreshold, File exitFile) {
+		this.maximumNumberOfRuns = maximumNumberOfRuns;
+		this.memoryThreshold = memoryThreshold;
+		this.exitFile = exitFile;
+	}
+
+	public void serve(ServerSocket serverSocket) throws IOException {
+		while (true) {
+			try (Socket socket = serverSocket.accept()) {
+				BufferedReader reader = new BufferedReader(
+						new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+				OutputStream outputStream = socket.getOutputStream();
+
+				String line = null;
+				while ((line = reader.readLine()) != null) {
+					Response response = process(objectMapper.readValue(line, Request.class));
+					outputStream.write(objectMapper.writeValueAsBytes(response));
+					outputStream.write('\n');
+					outputStream.flush();
+				}
+			} catch (IOException e) {
+				// The driver has gone away, the worker keeps running
+			}
+		}
+	}
+
+	synchronized private Response process(Request request) {
+		Response response = new Response();
+
+		if (WorkerMessages.RUN.equals(request.command)) {
+			if (currentId != null) {
+				response.error = "Worker is busy with run " + currentId;
+			} else {
+				currentId = request.id;
+
+				Thread thread = new Thread(() -> execute(request));
+				thread.setName("run-" + request.id);
+				thread.start();
+			}
+		} else if (!WorkerMessages.STATUS.equals(request.command)) {
+			response.error = "Unknown command " + request.command;
+		}
+
+		response.runningId = currentId;
+		response.numberOfRuns = numberOfRuns;
+		return response;
+	}
+
+	private void execute(Request request) {
+		File directory = new File(request.directory);
+		Throwable failure = null;
+
+		try (PrintStream out = new PrintStream(new FileOutputStream(new File(directory, "run_output.log")), true);
+				PrintStream err = new PrintStream(new FileOutputStream(new File(directory, "run_error.log")), true)) {
+			System.setOut(out);
+			System.setErr(err);
+			System.setProperty("user.dir", directory.getAbsolutePath());
+
+			try (URLClassLoader classLoader = new URLClassLoader(buildClassPath(request.classPath),
+					ClassLoader.getSystemClassLoader().getParent())) {
+				Thread.currentThread().setContextClassLoader(classLoader);
+
+				String[] arguments = buildArguments(directory, request.arguments);
+				rewriteOutputDirectories(directory, arguments);
+
+				Class<?> entryPoint = Class.forName(request.entryPoint, true, classLoader);
+				entryPoint.getMethod("main", String[].class).invoke(null, (Object) arguments);
+			} catch (InvocationTargetException e) {
+				failure = e.getCause();
+			} catch (Throwable e) {
+				failure = e;
+			}
+
+			if (failure != null) {
+				failure.printStackTrace(err);
+			}
+		} catch (IOException e) {
+			failure = e;
+		} finally {
+			System.setOut(originalOut);
+			System.setErr(originalErr);
+			System.setProperty("user.dir", originalDirectory);
+		}
+
+		try {
+			Files.write(new File(directory, "run.exit").toPath(),
+					(failure == null ? "0" : "1 " + failure).getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		synchronized (this) {
+			numberOfRuns++;
+			currentId = null;
+
+			if (shouldRecycle()) {
+				exitFile.delete();
+				System.exit(0);
+			}
+		}
+	}
+
+	private boolean shouldRecycle() {
+		if (numberOfRuns >= maximumNumberOfRuns) {
+			return true;
+		}
+
+		System.gc();
+
+		Runtime runtime = Runtime.getRuntime();
+		double used = runtime.totalMemory() - runtime.freeMemory();
+		return used > memoryThreshold * runtime.maxMemory();
+	}
+
+	static private URL[] buildClassPath(List<String> classPath) throws MalformedURLException {
+		List<URL> urls = new LinkedList<>();
+
+		for (String entry : classPath) {
+			if (entry.endsWith("*")) {
+				File[] files = new File(entry.substring(0, entry.length() - 1)).listFiles();
+
+				if (files != null) {
+					for (File file : files) {
+						if (file.getName().endsWith(".jar")) {
+							urls.add(file.toURI().toURL());
+						}
+					}
+				}
+			} else {
+				urls.add(new File(entry).toURI().toURL());
+			}
+		}
+
+		return urls.toArray(new URL[urls.size()]);
+	}
+
+	/**
+	 * The process working directory of a JVM cannot be changed, so arguments that
+	 * point to files in the run directory are made absolute.
+	 */
+	static private String[] buildArguments(File directory, List<String> arguments) {
+		String[] result = new String[arguments.size()];
+
+		for (int i = 0; i < result.length; i++) {
+			String argument = arguments.get(i);
+			File file = new File(argument);
+
+			if (!file.isAbsolute() && new File(directory, argument).exists()) {
+				result[i] = new File(directory, argument).getAbsolutePath();
+			} else {
+				result[i] = argument;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * MATSim resolves a relative output directory against the process working
+	 * directory, which is the pool directory for all runs of the worker. Configs
+	 * in the run directory that are passed as arguments therefore get their output
+	 * directory (by default "output") rewritten to an absolute path below the run
+	 * directory before the entry point is called.
+	 */
+	static private void rewriteOutputDirectories(File directory, String[] arguments) throws Exception {
+		String prefix = directory.getAbsolutePath() + File.separator;
+
+		for (String argument : arguments) {
+			File file = new File(argument);
+
+			if (file.isFile() && file.getName().endsWith(".xml") && file.getAbsolutePath().startsWith(prefix)) {
+				rewriteOutputDirectory(directory, file);
+			}
+		}
+	}
+
+	static private void rewriteOutputDirectory(File directory, File configFile) throws Exception {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setValidating(false);
+
+		// The DTD of the config is not needed and may not be reachable
+		factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+
+		DocumentBuilder builder = factory.newDocumentBuilder();
+		Document document = builder.parse(configFile);
+		Element root = document.getDocumentElement();
+
+		if (!"config".equals(root.getTagName())) {
+			return;
+		}
+
+		Element controlerModule = null;
+		Element outputParameter = null;
+
+		NodeList modules = root.getElementsByTagName("module");
+
+		for (int i = 0; i < modules.getLength(); i++) {
+			Element module = (Element) modules.item(i);
+
+			if ("controler".equals(module.getAttribute("name")) && module.getParentNode() == root) {
+				controlerModule = module;
+				NodeList parameters = module.getElementsByTagName("param");
+
+				for (int j = 0; j < parameters.getLength(); j++) {
+					Element parameter = (Element) parameters.item(j);
+
+					if ("outputDirectory".equals(parameter.getAttribute("name"))) {
+						outputParameter = parameter;
+					}
+				}
+			}
+		}
+
+		if (controlerModule == null) {
+			controlerModule = document.createElement("module");
+			controlerModule.setAttribute("name", "controler");
+			root.appendChild(controlerModule);
+		}
+
+		if (outputParameter == null) {
+			outputParameter = document.createElement("param");
+			outputParameter.setAttribute("name", "outputDirectory");
+			outputParameter.setAttribute("value", "output");
+			controlerModule.appendChild(outputParameter);
+		}
+
+		String outputDirectory = outputParameter.getAttribute("value");
+
+		if (new File(outputDirectory).isAbsolute()) {
+			return;
+		}
+
+		outputParameter.setAttribute("value",
+				new File(directory, outputDirectory).toPath().normalize().toAbsolutePath().toString());
+
+		Transformer transformer = TransformerFactory.newInstance().newTransformer();
+
+		if (document.getDoctype() != null) {
+			transformer.setOutputProperty(OutputKeys.DOCTYPE_SYSTEM, document.getDoctype().getSystemId());
+		}
+
+		transformer.transform(new DOMSource(document), new StreamResult(configFile));
+	}
+
+	static public void main(String[] args) throws IOException {
+		File poolDirectory = new File(args[0]);
+		String workerId = args[1];
+		int maximumNumberOfRuns = Integer.parseInt(args[2]);
+		double memoryThreshold = Double.parseDouble(args[3]);
+
+		ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		File portFile = new File(poolDirectory, workerId + ".port");
+
+		// Written via a temporary file so the pool never reads a partial port
+		File temporaryFile = new File(poolDirectory, workerId + ".port.tmp");
+		Files.write(temporaryFile.toPath(), String.valueOf(serverSocket.getLocalPort()).getBytes());
+		temporaryFile.renameTo(portFile);
+
+		new WarmWorker(maximumNumberOfRuns, memoryThreshold, portFile).serve(serverSocket);
+	}
+}
@@ -0,0 +1,27 @@
+package ch.ethz.matsim.run_tools.framework.run.pool;
+
+import java.util.List;
+
+/**
+ * Messages of the line-based protocol between PooledRunEnvironment and
+ * WarmWorker. Every request and every response is one JSON object per line.
+ */
+class WorkerMessages {
+	final static String RUN = "run";
+	final static String STATUS = "status";
+
+	static class Request {
+		public String command;
+		public String id;
+		public String directory;
+		public List<String> classPath;
+		public String entryPoint;
+		public List<String> arguments;
+	}
+
+	static class Response {
+		public String error = null;
+		public String runningId = null;
+		public int numberOfRuns = 0;
+	}
+}
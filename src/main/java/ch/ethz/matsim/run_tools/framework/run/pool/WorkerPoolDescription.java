@@ -0,0 +1,25 @@
+package ch.ethz.matsim.run_tools.framework.run.pool;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+public class WorkerPoolDescription {
+	// Number of idle workers that are kept warm in addition to the busy ones
+	public int numberOfIdleWorkers = 2;
+
+	// A worker is replaced after this many runs ...
+	public int maximumNumberOfRuns = 10;
+
+	// ... or if more than this share of the heap is still used after a run
+	public double memoryThreshold = 0.5;
+
+	public long startupTimeout = 60 * 1000;
+
+	// The class path of the workers needs to contain run_tools, by default the
+	// one of the driver is used
+	public List<String> classPath = new LinkedList<>(
+			Arrays.asList(System.getProperty("java.class.path").split(File.pathSeparator)));
+	public List<String> vmArguments = new LinkedList<>();
+}
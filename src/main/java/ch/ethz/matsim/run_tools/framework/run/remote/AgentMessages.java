@@ -0,0 +1,35 @@
+package ch.ethz.matsim.run_tools.framework.run.remote;
+
+import java.util.Collection;
+
+import ch.ethz.matsim.run_tools.framework.run.RunDescription;
+
+/**
+ * Messages of the line-based protocol between RemoteRunEnvironment and
+ * RunAgent. Every request and every response is one JSON object per line.
+ * Requests carry the shared secret of the agent.
+ */
+class AgentMessages {
+	final static String SETUP = "setup";
+	final static String REMOVE = "remove";
+	final static String START = "start";
+	final static String STOP = "stop";
+	final static String IS_RUNNING = "isRunning";
+	final static String EXISTS = "exists";
+	final static String STATUSES = "statuses";
+	final static String IDS = "ids";
+	final static String LOAD = "load";
+
+	static class Request {
+		public String secret;
+		public String command;
+		public String id;
+		public Collection<String> ids;
+		public RunDescription description;
+	}
+
+	static class Response {
+		public String error = null;
+		public Object value = null;
+	}
+}
@@ -0,0 +1,17 @@
+package ch.ethz.matsim.run_tools.framework.run.remote;
+
+public class RemoteNode {
+	public String name = null;
+	public String host = "localhost";
+	public int port = 0;
+
+	// Shared secret that the agent on the node expects in every request
+	public String secret = null;
+
+	// VFS URI under which the root directory of the agent is reachable from the
+	// coordinator, e.g. sftp://user@host/path/to/root or file:///path/to/root
+	public String rootUri = null;
+
+	// Number of runs the node can execute at the same time
+	public int capacity = 1;
+}
@@ -0,0 +1,272 @@
+package ch.ethz.matsim.run_tools.framework.run.remote;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.VFS;
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ch.ethz.matsim.run_tools.framework.run.RunDescription;
+import ch.ethz.matsim.run_tools.framework.run.RunEnvironment;
+import ch.ethz.matsim.run_tools.framework.run.RunStatus;
+import ch.ethz.matsim.run_tools.framework.run.remote.AgentMessages.Request;
+
+/**
+ * RunEnvironment that distributes runs over several hosts, each running a
+ * RunAgent. A run is placed on the node with the lowest ratio of running (or
+ * freshly set up) runs to capacity when it is set up and stays there. The
+ * placement is persisted in the state file in the local root directory, which
+ * is also where calibration state (e.g. of SPSA) is kept. Run directories are
+ * resolved through the VFS root URI configured for each node.
+ */
+public class RemoteRunEnvironment implements RunEnvironment {
+	final private Logger logger = Logger.getLogger(RemoteRunEnvironment.class);
+
+	final private TypeReference<HashMap<String, String>> placementTypeReference = new TypeReference<HashMap<String, String>>() {
+	};
+
+	final private ObjectMapper objectMapper = new ObjectMapper();
+
+	final private File rootDirectory;
+	final private File placementFile;
+
+	final private Map<String, RemoteNode> nodes = new HashMap<>();
+	final private Map<String, RunAgentClient> clients = new HashMap<>();
+	final private Map<String, String> placement;
+
+	// Runs that have been set up but not started yet, so they are not counted by
+	// the agents but should already count for placement
+	final private Set<String> pending = new HashSet<>();
+
+	public RemoteRunEnvironment(String stateFile, File rootDirectory, List<RemoteNode> nodes) {
+		this.rootDirectory = rootDirectory;
+		this.placementFile = new File(rootDirectory, stateFile);
+
+		for (RemoteNode node : nodes) {
+			if (node.name == null) {
+				node.name = node.host + ":" + node.port;
+			}
+
+			if (node.secret == null) {
+				throw new IllegalArgumentException("No secret is configured for node " + node.name);
+			}
+
+			this.nodes.put(node.name, node);
+			this.clients.put(node.name, new RunAgentClient(node));
+		}
+
+		try {
+			if (placementFile.exists()) {
+				placement = objectMapper.readValue(placementFile, placementTypeReference);
+			} else {
+				placement = new HashMap<>();
+				updatePlacement();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		for (String id : placement.keySet()) {
+			if (!this.nodes.containsKey(placement.get(id))) {
+				logger.warn("Run " + id + " is placed on unknown node " + placement.get(id));
+			}
+		}
+
+		logger.info("Initialized remote environment with " + nodes.size() + " nodes and " + placement.size() + " runs.");
+	}
+
+	private void updatePlacement() {
+		try {
+			objectMapper.writeValue(placementFile, placement);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private Request createRequest(String command, String id) {
+		Request request = new Request();
+		request.command = command;
+		request.id = id;
+		return request;
+	}
+
+	private RemoteNode getNode(String id) {
+		String name = placement.get(id);
+
+		if (name == null) {
+			throw new IllegalStateException("Run " + id + " does not exist");
+		}
+
+		RemoteNode node = nodes.get(name);
+
+		if (node == null) {
+			throw new IllegalStateException("Run " + id + " is placed on unknown node " + name);
+		}
+
+		return node;
+	}
+
+	private RunAgentClient getClient(String id) {
+		return clients.get(getNode(id).name);
+	}
+
+	private RemoteNode selectNode() {
+		RemoteNode selected = null;
+		double selectedLoad = Double.POSITIVE_INFINITY;
+
+		for (RemoteNode node : nodes.values()) {
+			try {
+				long running = clients.get(node.name).request(createRequest(AgentMessages.LOAD, null),
+						new TypeReference<Long>() {
+						});
+				long placed = pending.stream().filter(id -> node.name.equals(placement.get(id))).count();
+				double load = (double) (running + placed) / node.capacity;
+
+				if (load < selectedLoad) {
+					selected = node;
+					selectedLoad = load;
+				}
+			} catch (RuntimeException e) {
+				logger.warn("Skipping node " + node.name + ": " + e.getMessage());
+			}
+		}
+
+		if (selected == null) {
+			throw new IllegalStateException("No node is available");
+		}
+
+		return selected;
+	}
+
+	@Override
+	synchronized public void setup(String id, RunDescription description) {
+		if (placement.containsKey(id)) {
+			throw new IllegalStateException("Run " + id + " already exists");
+		}
+
+		RemoteNode node = selectNode();
+
+		Request request = createRequest(AgentMessages.SETUP, id);
+		request.description = description;
+		clients.get(node.name).request(request);
+
+		placement.put(id, node.name);
+		pending.add(id);
+		updatePlacement();
+
+		logger.info("Set up run " + id + " on node " + node.name);
+	}
+
+	@Override
+	synchronized public void remove(String id) {
+		getClient(id).request(createRequest(AgentMessages.REMOVE, id));
+
+		placement.remove(id);
+		pending.remove(id);
+		updatePlacement();
+
+		logger.info("Removed run " + id);
+	}
+
+	@Override
+	synchronized public void start(String id) {
+		getClient(id).request(createRequest(AgentMessages.START, id));
+		pending.remove(id);
+		logger.info("Started run " + id + " on node " + getNode(id).name);
+	}
+
+	@Override
+	synchronized public void stop(String id) {
+		getClient(id).request(createRequest(AgentMessages.STOP, id));
+		logger.info("Stopped run " + id);
+	}
+
+	@Override
+	synchronized public boolean isRunning(String id) {
+		return getClient(id).request(createRequest(AgentMessages.IS_RUNNING, id), new TypeReference<Boolean>() {
+		});
+	}
+
+	@Override
+	synchronized public Map<String, RunStatus> getStatuses(Collection<String> ids) {
+		Map<String, List<String>> idsByNode = new HashMap<>();
+		Map<String, RunStatus> statuses = new HashMap<>();
+
+		for (String id : ids) {
+			String name = placement.get(id);
+
+			if (name == null || !nodes.containsKey(name)) {
+				statuses.put(id, RunStatus.MISSING);
+			} else {
+				idsByNode.computeIfAbsent(name, n -> new LinkedList<>()).add(id);
+			}
+		}
+
+		for (Map.Entry<String, List<String>> entry : idsByNode.entrySet()) {
+			Request request = createRequest(AgentMessages.STATUSES, null);
+			request.ids = entry.getValue();
+
+			statuses.putAll(clients.get(entry.getKey()).request(request,
+					new TypeReference<HashMap<String, RunStatus>>() {
+					}));
+		}
+
+		return statuses;
+	}
+
+	@Override
+	synchronized public boolean exists(String id) {
+		if (!placement.containsKey(id) || !nodes.containsKey(placement.get(id))) {
+			return false;
+		}
+
+		return getClient(id).request(createRequest(AgentMessages.EXISTS, id), new TypeReference<Boolean>() {
+		});
+	}
+
+	@Override
+	public FileObject getRootDirectory() {
+		try {
+			return VFS.getManager().resolveFile(rootDirectory.getAbsolutePath());
+		} catch (FileSystemException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	synchronized public FileObject getRunDirectory(String id) {
+		RemoteNode node = getNode(id);
+
+		try {
+			return VFS.getManager().resolveFile(node.rootUri + "/" + id);
+		} catch (FileSystemException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	synchronized public Collection<String> getAvailableIds() {
+		Set<String> ids = new HashSet<>();
+
+		for (String id : placement.keySet()) {
+			if (nodes.containsKey(placement.get(id))) {
+				ids.add(id);
+			}
+		}
+
+		return Collections.unmodifiableCollection(ids);
+	}
+}
@@ -0,0 +1,170 @@
+package ch.ethz.matsim.run_tools.framework.run.remote;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ch.ethz.matsim.run_tools.framework.run.LocalLinuxRunEnvironment;
+import ch.ethz.matsim.run_tools.framework.run.RunEnvironment;
+import ch.ethz.matsim.run_tools.framework.run.RunStatus;
+import ch.ethz.matsim.run_tools.framework.run.remote.AgentMessages.Request;
+import ch.ethz.matsim.run_tools.framework.run.remote.AgentMessages.Response;
+
+/**
+ * Small per-host process that exposes a local RunEnvironment to a
+ * RemoteRunEnvironment over a socket. Class paths of runs are resolved relative
+ * to the root directory of the agent, so the simulation jars need to be present
+ * on every node.
+ *
+ * Every request needs to carry the shared secret of the agent, as runs can
+ * execute arbitrary code on the host. Without a bind address, the agent only
+ * listens on the loopback interface.
+ *
+ * Usage: RunAgent [port] [root directory] [state file] [secret file] (bind
+ * address)
+ */
+public class RunAgent {
+	final private Logger logger = Logger.getLogger(RunAgent.class);
+
+	final private RunEnvironment environment;
+	final private ServerSocket serverSocket;
+	final private byte[] secret;
+	final private ObjectMapper objectMapper = new ObjectMapper();
+	final private ExecutorService executor = Executors.newCachedThreadPool();
+
+	public RunAgent(RunEnvironment environment, ServerSocket serverSocket, String secret) {
+		if (secret == null || secret.isEmpty()) {
+			throw new IllegalArgumentException("The agent needs a shared secret");
+		}
+
+		this.environment = environment;
+		this.serverSocket = serverSocket;
+		this.secret = secret.getBytes(StandardCharsets.UTF_8);
+	}
+
+	public void run() {
+		logger.info("Agent listening on " + serverSocket.getLocalSocketAddress());
+
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+				executor.submit(() -> handle(socket));
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					logger.error("Error while accepting connection", e);
+				}
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		serverSocket.close();
+		executor.shutdownNow();
+	}
+
+	private void handle(Socket socket) {
+		try {
+			BufferedReader reader = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			OutputStream outputStream = socket.getOutputStream();
+
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				Response response = new Response();
+				boolean authorized = false;
+
+				try {
+					Request request = objectMapper.readValue(line, Request.class);
+					authorized = isAuthorized(request);
+
+					if (authorized) {
+						response.value = process(request);
+					} else {
+						response.error = "Request is not authorized";
+					}
+				} catch (RuntimeException | IOException e) {
+					response.error = e.getClass().getSimpleName() + ": " + e.getMessage();
+				}
+
+				outputStream.write(objectMapper.writeValueAsBytes(response));
+				outputStream.write('\n');
+				outputStream.flush();
+
+				if (!authorized) {
+					logger.warn("Rejected request from " + socket.getRemoteSocketAddress());
+					break;
+				}
+			}
+
+			socket.close();
+		} catch (IOException e) {
+			logger.warn("Connection to " + socket.getRemoteSocketAddress() + " failed", e);
+		}
+	}
+
+	private boolean isAuthorized(Request request) {
+		if (request.secret == null) {
+			return false;
+		}
+
+		// Constant time comparison, so the secret cannot be guessed by timing
+		return MessageDigest.isEqual(secret, request.secret.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private Object process(Request request) {
+		switch (request.command) {
+		case AgentMessages.SETUP:
+			environment.setup(request.id, request.description);
+			return null;
+		case AgentMessages.REMOVE:
+			environment.remove(request.id);
+			return null;
+		case AgentMessages.START:
+			environment.start(request.id);
+			return null;
+		case AgentMessages.STOP:
+			environment.stop(request.id);
+			return null;
+		case AgentMessages.IS_RUNNING:
+			return environment.isRunning(request.id);
+		case AgentMessages.EXISTS:
+			return environment.exists(request.id);
+		case AgentMessages.STATUSES:
+			return environment.getStatuses(request.ids);
+		case AgentMessages.IDS:
+			return environment.getAvailableIds();
+		case AgentMessages.LOAD:
+			Map<String, RunStatus> statuses = environment.getStatuses(environment.getAvailableIds());
+			return statuses.values().stream().filter(RunStatus.RUNNING::equals).count();
+		default:
+			throw new IllegalArgumentException("Unknown command " + request.command);
+		}
+	}
+
+	static public void main(String[] args) throws IOException {
+		int port = Integer.parseInt(args[0]);
+		File rootDirectory = new File(args[1]);
+		String stateFile = args[2];
+		String secret = new String(Files.readAllBytes(new File(args[3]).toPath()), StandardCharsets.UTF_8).trim();
+		InetAddress bindAddress = args.length > 4 ? InetAddress.getByName(args[4])
+				: InetAddress.getLoopbackAddress();
+
+		RunEnvironment environment = new LocalLinuxRunEnvironment(stateFile, rootDirectory);
+		new RunAgent(environment, new ServerSocket(port, 50, bindAddress), secret).run();
+	}
+}
@@ -0,0 +1,123 @@
+package ch.ethz.matsim.run_tools.framework.run.remote;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ch.ethz.matsim.run_tools.framework.run.remote.AgentMessages.Request;
+import ch.ethz.matsim.run_tools.framework.run.remote.AgentMessages.Response;
+
+/**
+ * Keeps one connection to a RunAgent and reconnects once if a reused
+ * connection turns out to have been dropped. Queries are sent again in that
+ * case, but commands that change the state of the agent only if they could not
+ * be written, as the agent may already have executed them otherwise.
+ */
+class RunAgentClient {
+	final private static Set<String> IDEMPOTENT_COMMANDS = new HashSet<>(Arrays.asList(AgentMessages.IS_RUNNING,
+			AgentMessages.EXISTS, AgentMessages.STATUSES, AgentMessages.IDS, AgentMessages.LOAD));
+
+	final private RemoteNode node;
+	final private ObjectMapper objectMapper = new ObjectMapper();
+
+	private Socket socket = null;
+	private BufferedReader reader = null;
+	private OutputStream outputStream = null;
+
+	public RunAgentClient(RemoteNode node) {
+		this.node = node;
+	}
+
+	private void connect() throws IOException {
+		socket = new Socket(node.host, node.port);
+		reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		outputStream = socket.getOutputStream();
+	}
+
+	private void disconnect() {
+		try {
+			if (socket != null) {
+				socket.close();
+			}
+		} catch (IOException e) {
+		}
+
+		socket = null;
+	}
+
+	private void write(Request request) throws IOException {
+		if (socket == null) {
+			connect();
+		}
+
+		request.secret = node.secret;
+
+		outputStream.write(objectMapper.writeValueAsBytes(request));
+		outputStream.write('\n');
+		outputStream.flush();
+	}
+
+	private Response read() throws IOException {
+		String line = reader.readLine();
+
+		if (line == null) {
+			throw new IOException("Connection closed by agent");
+		}
+
+		return objectMapper.readValue(line, Response.class);
+	}
+
+	synchronized public <T> T request(Request request, TypeReference<T> type) {
+		Response response;
+		boolean reused = socket != null;
+		boolean written = false;
+
+		try {
+			write(request);
+			written = true;
+			response = read();
+		} catch (IOException e) {
+			disconnect();
+
+			if (written && !IDEMPOTENT_COMMANDS.contains(request.command)) {
+				throw new RuntimeException("Lost connection to agent " + node.name + " after sending " + request.command
+						+ ", it may or may not have been executed", e);
+			}
+
+			if (!reused) {
+				throw new RuntimeException("Cannot reach agent " + node.name + " at " + node.host + ":" + node.port,
+						e);
+			}
+
+			// The connection may have gone stale, so try once more with a fresh one
+			try {
+				write(request);
+				response = read();
+			} catch (IOException f) {
+				disconnect();
+				throw new RuntimeException("Cannot reach agent " + node.name + " at " + node.host + ":" + node.port,
+						f);
+			}
+		}
+
+		if (response.error != null) {
+			throw new IllegalStateException("Agent " + node.name + ": " + response.error);
+		}
+
+		return response.value == null ? null : objectMapper.convertValue(response.value, type);
+	}
+
+	public void request(Request request) {
+		request(request, new TypeReference<Object>() {
+		});
+	}
+}
@@ -0,0 +1,181 @@
+package ch.ethz.matsim.run_tools.framework.simulation;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.vfs2.FileObject;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigGroup;
+import org.matsim.core.config.ConfigReader;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.config.ConfigWriter;
+import org.matsim.core.utils.io.UncheckedIOException;
+
+/**
+ * A MATSim config that is parsed once and then copied for every simulation.
+ * A copy replays the parameters and parameter sets of the template onto a
+ * fresh default config, in the same way ConfigReader fills it, which avoids
+ * reading and parsing the XML again.
+ *
+ * Overrides are given as a map from a parameter path to its value. A path
+ * consists of the module name, optionally the parameter sets to descend into,
+ * and the parameter name, separated by slashes. A parameter set is selected by
+ * its type and, if there are several of that type, by a parameter value, e.g.
+ * "planCalcScore/scoringParameters/modeParams[mode=car]/constant".
+ */
+public class ConfigTemplate {
+	final private static Pattern PARAMETER_SET_PATTERN = Pattern.compile("^(.+)\\[(.+)=(.*)\\]$");
+
+	final private Config template;
+
+	public ConfigTemplate(Config template) {
+		this.template = template;
+	}
+
+	static public ConfigTemplate read(FileObject file) {
+		return new ConfigTemplate(readConfig(file));
+	}
+
+	/**
+	 * Parses a config that is only needed once, without keeping a template.
+	 */
+	static public Config readConfig(FileObject file) {
+		Config config = ConfigUtils.createConfig();
+
+		try (InputStream inputStream = file.getContent().getInputStream()) {
+			new ConfigReader(config).parse(inputStream);
+		} catch (IOException | UncheckedIOException e) {
+			throw new RuntimeException("Error while reading config " + file.getName().getURI(), e);
+		}
+
+		return config;
+	}
+
+	/**
+	 * Returns a modifiable copy of the template.
+	 */
+	public Config create() {
+		return create(Collections.emptyMap());
+	}
+
+	/**
+	 * Returns a modifiable copy of the template with the given overrides
+	 * applied.
+	 */
+	public Config create(Map<String, String> overrides) {
+		Config config = ConfigUtils.createConfig();
+
+		// Config groups are not meant to be read concurrently, while copies may be
+		// created from several setup threads
+		synchronized (template) {
+			for (ConfigGroup module : template.getModules().values()) {
+				ConfigGroup target = config.getModule(module.getName());
+
+				if (target == null) {
+					target = config.createModule(module.getName());
+				}
+
+				copy(module, target);
+			}
+		}
+
+		for (Map.Entry<String, String> override : overrides.entrySet()) {
+			apply(config, override.getKey(), override.getValue());
+		}
+
+		return config;
+	}
+
+	static private void copy(ConfigGroup source, ConfigGroup target) {
+		for (Map.Entry<String, String> parameter : source.getParams().entrySet()) {
+			if (parameter.getValue() != null) {
+				target.addParam(parameter.getKey(), parameter.getValue());
+			}
+		}
+
+		for (Map.Entry<String, ? extends Collection<? extends ConfigGroup>> entry : source.getParameterSets()
+				.entrySet()) {
+			for (ConfigGroup parameterSet : entry.getValue()) {
+				ConfigGroup copy = target.createParameterSet(entry.getKey());
+				copy(parameterSet, copy);
+				target.addParameterSet(copy);
+			}
+		}
+	}
+
+	static private void apply(Config config, String path, String value) {
+		String[] segments = path.split("/");
+
+		if (segments.length < 2) {
+			throw new IllegalArgumentException("Invalid config path: " + path);
+		}
+
+		ConfigGroup group = config.getModule(segments[0]);
+
+		if (group == null) {
+			throw new IllegalArgumentException("Unknown config module in path " + path);
+		}
+
+		for (int i = 1; i < segments.length - 1; i++) {
+			group = findParameterSet(group, segments[i], path);
+		}
+
+		group.addParam(segments[segments.length - 1], value);
+	}
+
+	static private ConfigGroup findParameterSet(ConfigGroup group, String selector, String path) {
+		String type = selector;
+		String key = null;
+		String value = null;
+
+		Matcher matcher = PARAMETER_SET_PATTERN.matcher(selector);
+
+		if (matcher.matches()) {
+			type = matcher.group(1);
+			key = matcher.group(2);
+			value = matcher.group(3);
+		}
+
+		Collection<? extends ConfigGroup> candidates = group.getParameterSets().get(type);
+		ConfigGroup result = null;
+
+		if (candidates != null) {
+			for (ConfigGroup candidate : candidates) {
+				if (key == null || value.equals(candidate.getParams().get(key))) {
+					if (result != null) {
+						throw new IllegalArgumentException("Ambiguous parameter set " + selector + " in path " + path);
+					}
+
+					result = candidate;
+				}
+			}
+		}
+
+		if (result == null) {
+			throw new IllegalArgumentException("Unknown parameter set " + selector + " in path " + path);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Writes a config through a buffered writer.
+	 */
+	static public void write(Config config, FileObject file) {
+		try (Writer writer = new BufferedWriter(
+				new OutputStreamWriter(file.getContent().getOutputStream(), StandardCharsets.UTF_8))) {
+			new ConfigWriter(config).writeStream(writer);
+		} catch (IOException | UncheckedIOException e) {
+			throw new RuntimeException("Error while writing config " + file.getName().getURI(), e);
+		}
+	}
+}
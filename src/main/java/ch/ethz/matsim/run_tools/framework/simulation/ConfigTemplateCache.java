@@ -0,0 +1,71 @@
+package ch.ethz.matsim.run_tools.framework.simulation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.vfs2.FileContent;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the parsed ConfigTemplate of every base config a driver uses, so each
+ * file is only parsed once. A template is parsed again if the size or the
+ * modification time of its file have changed.
+ */
+public class ConfigTemplateCache {
+	final private Logger logger = Logger.getLogger(ConfigTemplateCache.class);
+
+	final private Map<String, Entry> entries = new HashMap<>();
+
+	public ConfigTemplate get(FileObject file) {
+		String uri = file.getName().getURI();
+		long size;
+		long lastModifiedTime;
+
+		try {
+			file.refresh();
+			FileContent content = file.getContent();
+			size = content.getSize();
+			lastModifiedTime = content.getLastModifiedTime();
+		} catch (FileSystemException e) {
+			throw new RuntimeException("Error while accessing config " + uri, e);
+		}
+
+		Entry entry;
+
+		synchronized (entries) {
+			entry = entries.get(uri);
+
+			if (entry == null || entry.size != size || entry.lastModifiedTime != lastModifiedTime) {
+				entry = new Entry();
+				entry.size = size;
+				entry.lastModifiedTime = lastModifiedTime;
+				entries.put(uri, entry);
+			}
+		}
+
+		// Parsing happens outside the map lock, so templates of other files stay
+		// available in the meantime
+		synchronized (entry) {
+			if (entry.template == null) {
+				logger.info("Parsing config template " + uri);
+				entry.template = ConfigTemplate.read(file);
+			}
+
+			return entry.template;
+		}
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	static private class Entry {
+		long size;
+		long lastModifiedTime;
+		ConfigTemplate template;
+	}
+}
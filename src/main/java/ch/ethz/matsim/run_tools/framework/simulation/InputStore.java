@@ -0,0 +1,156 @@
+package ch.ethz.matsim.run_tools.framework.simulation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.log4j.Logger;
+
+/**
+ * Content-addressed store for simulation inputs (network, population, ...).
+ * Every file is kept once under its SHA-256 hash and linked into the run
+ * directories, so concurrent runs share one copy on disk and in the page
+ * cache. Hard links are used where possible, symbolic links if the run
+ * directory is on another file system, and a plain copy if the run directory
+ * is not local.
+ *
+ * Stored files are read-only; runs must not modify their linked inputs.
+ */
+public class InputStore {
+	final private Logger logger = Logger.getLogger(InputStore.class);
+
+	final private File storeDirectory;
+
+	// Avoids hashing the same source over and over again (URI -> size, time, hash)
+	final private Map<String, Registration> registrations = new HashMap<>();
+
+	public InputStore(File storeDirectory) {
+		this.storeDirectory = storeDirectory;
+		storeDirectory.mkdirs();
+	}
+
+	private File getObjectFile(String hash) {
+		return new File(new File(storeDirectory, hash.substring(0, 2)), hash);
+	}
+
+	public boolean contains(String hash) {
+		return getObjectFile(hash).exists();
+	}
+
+	/**
+	 * Adds the content of the given file to the store and returns its hash. Files
+	 * that have already been registered and not changed since are not read again.
+	 */
+	synchronized public String register(FileObject source) {
+		try {
+			String uri = source.getName().getURI();
+			long size = source.getContent().getSize();
+			long lastModified = source.getContent().getLastModifiedTime();
+
+			Registration registration = registrations.get(uri);
+
+			if (registration != null && registration.size == size && registration.lastModified == lastModified
+					&& contains(registration.hash)) {
+				return registration.hash;
+			}
+
+			File temporaryFile = File.createTempFile("input", ".tmp", storeDirectory);
+			String hash;
+
+			try {
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+				try (InputStream inputStream = new DigestInputStream(source.getContent().getInputStream(), digest);
+						OutputStream outputStream = Files.newOutputStream(temporaryFile.toPath())) {
+					IOUtils.copy(inputStream, outputStream);
+				}
+
+				hash = toHex(digest.digest());
+				File objectFile = getObjectFile(hash);
+
+				if (!objectFile.exists()) {
+					objectFile.getParentFile().mkdirs();
+					temporaryFile.setReadOnly();
+					Files.move(temporaryFile.toPath(), objectFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					logger.info("Stored " + uri + " as " + hash);
+				}
+			} finally {
+				temporaryFile.delete();
+			}
+
+			registration = new Registration();
+			registration.size = size;
+			registration.lastModified = lastModified;
+			registration.hash = hash;
+			registrations.put(uri, registration);
+
+			return hash;
+		} catch (IOException | NoSuchAlgorithmException e) {
+			throw new RuntimeException("Error while storing " + source.getName().getURI(), e);
+		}
+	}
+
+	/**
+	 * Makes the stored content with the given hash available at the target
+	 * location.
+	 */
+	public void link(String hash, FileObject target) {
+		File objectFile = getObjectFile(hash);
+
+		if (!objectFile.exists()) {
+			throw new IllegalStateException("Input " + hash + " is not in the store");
+		}
+
+		try {
+			if (!"file".equals(target.getName().getScheme())) {
+				try (InputStream inputStream = Files.newInputStream(objectFile.toPath());
+						OutputStream outputStream = target.getContent().getOutputStream()) {
+					IOUtils.copy(inputStream, outputStream);
+				}
+
+				return;
+			}
+
+			File targetFile = new File(target.getName().getPath());
+			targetFile.getParentFile().mkdirs();
+
+			try {
+				Files.createLink(targetFile.toPath(), objectFile.toPath());
+			} catch (FileAlreadyExistsException e) {
+				throw e;
+			} catch (IOException | UnsupportedOperationException e) {
+				// Most likely, the run directory is on another file system
+				Files.createSymbolicLink(targetFile.toPath(), objectFile.getAbsoluteFile().toPath());
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Error while linking input " + hash + " to " + target.getName().getURI(), e);
+		}
+	}
+
+	static private String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder();
+
+		for (byte b : bytes) {
+			builder.append(String.format("%02x", b));
+		}
+
+		return builder.toString();
+	}
+
+	static private class Registration {
+		long size;
+		long lastModified;
+		String hash;
+	}
+}
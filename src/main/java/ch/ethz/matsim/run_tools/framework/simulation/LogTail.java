@@ -0,0 +1,241 @@
+package ch.ethz.matsim.run_tools.framework.simulation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.RandomAccessContent;
+import org.apache.commons.vfs2.util.RandomAccessMode;
+
+/**
+ * Follows a growing log file by reading only the bytes appended since the last
+ * call. The most recent lines are kept in a ring buffer of fixed size, so
+ * memory stays bounded however large the log grows. Lines are numbered from 0;
+ * callers pass the number of the next line they expect as a cursor.
+ * Subscriptions are notified for every new line that matches their pattern.
+ *
+ * The file is read from the start again if it shrinks, disappears or, for
+ * local files, is replaced by a new file (detected by its file key).
+ */
+public class LogTail {
+	final private static int CHUNK_SIZE = 64 * 1024;
+
+	final private FileObject file;
+	final private String[] buffer;
+	final private int maximumLineLength;
+
+	final private List<Subscription> subscriptions = new LinkedList<>();
+	final private ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+
+	private long offset = 0;
+	private long numberOfLines = 0;
+	private long numberOfResets = 0;
+	private Object identity = null;
+
+	public LogTail(FileObject file, int capacity, int maximumLineLength) {
+		this.file = file;
+		this.buffer = new String[capacity];
+		this.maximumLineLength = maximumLineLength;
+	}
+
+	public LogTail(FileObject file) {
+		this(file, 1000, 10000);
+	}
+
+	/**
+	 * Calls the consumer for every new line that matches the pattern (using find,
+	 * not a full match). Lines that have been read before subscribing are not
+	 * reported.
+	 */
+	synchronized public void subscribe(Pattern pattern, Consumer<String> consumer) {
+		Subscription subscription = new Subscription();
+		subscription.pattern = pattern;
+		subscription.consumer = consumer;
+		subscriptions.add(subscription);
+	}
+
+	/**
+	 * Reads everything that has been appended since the last call and returns the
+	 * number of new lines.
+	 */
+	synchronized public int update() {
+		long previousNumberOfLines = numberOfLines;
+
+		try {
+			// Otherwise, VFS may report a cached state of the file
+			file.refresh();
+
+			if (!file.exists()) {
+				reset();
+				return 0;
+			}
+
+			Object currentIdentity = getIdentity();
+
+			if (currentIdentity != null && !currentIdentity.equals(identity)) {
+				if (identity != null) {
+					// A new file has been written in place of the old one
+					reset();
+				}
+
+				identity = currentIdentity;
+			}
+
+			try (RandomAccessContent content = file.getContent().getRandomAccessContent(RandomAccessMode.READ)) {
+				long length = content.length();
+
+				if (length < offset) {
+					// The file has been truncated or replaced, e.g. by a restart of the run
+					reset();
+				}
+
+				if (length > offset) {
+					content.seek(offset);
+					InputStream inputStream = content.getInputStream();
+					byte[] chunk = new byte[CHUNK_SIZE];
+
+					while (offset < length) {
+						int read = inputStream.read(chunk, 0, (int) Math.min(CHUNK_SIZE, length - offset));
+
+						if (read < 0) {
+							break;
+						}
+
+						process(chunk, read);
+						offset += read;
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Error while reading " + file.getName().getURI(), e);
+		}
+
+		return (int) (numberOfLines - previousNumberOfLines);
+	}
+
+	/**
+	 * Returns a key that changes if the file is replaced, or null if it is not
+	 * known. Only local files have one. The creation time is used where there is
+	 * no file key, as Linux reports the modification time as creation time.
+	 */
+	private Object getIdentity() {
+		if (!"file".equals(file.getName().getScheme())) {
+			return null;
+		}
+
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(Paths.get(file.getName().getPath()),
+					BasicFileAttributes.class);
+			return attributes.fileKey() != null ? attributes.fileKey() : attributes.creationTime();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the file from the start at the next update, e.g. because the run is
+	 * restarted and writes a new file. Line numbers keep counting up.
+	 */
+	synchronized public void reset() {
+		if (offset > 0 || partialLine.size() > 0) {
+			offset = 0;
+			partialLine.reset();
+			numberOfResets++;
+		}
+	}
+
+	private void process(byte[] chunk, int length) {
+		int start = 0;
+
+		for (int i = 0; i < length; i++) {
+			if (chunk[i] == '\n') {
+				append(chunk, start, i);
+				addLine(new String(partialLine.toByteArray(), StandardCharsets.UTF_8));
+				partialLine.reset();
+				start = i + 1;
+			}
+		}
+
+		append(chunk, start, length);
+	}
+
+	private void append(byte[] chunk, int start, int end) {
+		// Overly long lines are cut, so a single line cannot exhaust the memory
+		int available = maximumLineLength - partialLine.size();
+
+		if (available > 0 && end > start) {
+			partialLine.write(chunk, start, Math.min(end - start, available));
+		}
+	}
+
+	private void addLine(String line) {
+		if (line.endsWith("\r")) {
+			line = line.substring(0, line.length() - 1);
+		}
+
+		buffer[(int) (numberOfLines % buffer.length)] = line;
+		numberOfLines++;
+
+		for (Subscription subscription : subscriptions) {
+			if (subscription.pattern.matcher(line).find()) {
+				subscription.consumer.accept(line);
+			}
+		}
+	}
+
+	/**
+	 * Reads new content and returns the lines from the cursor on. If lines have
+	 * already dropped out of the buffer, the result starts with the oldest
+	 * buffered line and reports how many lines have been skipped.
+	 */
+	synchronized public Lines getLines(long cursor) {
+		update();
+
+		long first = Math.max(cursor, Math.max(0, numberOfLines - buffer.length));
+		List<String> lines = new LinkedList<>();
+
+		for (long index = first; index < numberOfLines; index++) {
+			lines.add(buffer[(int) (index % buffer.length)]);
+		}
+
+		return new Lines(lines, numberOfLines, Math.max(0, first - cursor));
+	}
+
+	synchronized public long getNumberOfLines() {
+		return numberOfLines;
+	}
+
+	/**
+	 * Returns how often the file has been found truncated or removed, after which
+	 * it is read from the start again.
+	 */
+	synchronized public long getNumberOfResets() {
+		return numberOfResets;
+	}
+
+	static public class Lines {
+		final public List<String> lines;
+		final public long cursor;
+		final public long skipped;
+
+		public Lines(List<String> lines, long cursor, long skipped) {
+			this.lines = lines;
+			this.cursor = cursor;
+			this.skipped = skipped;
+		}
+	}
+
+	static private class Subscription {
+		Pattern pattern;
+		Consumer<String> consumer;
+	}
+}
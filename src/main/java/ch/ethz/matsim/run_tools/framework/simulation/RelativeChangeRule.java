@@ -0,0 +1,83 @@
+package ch.ethz.matsim.run_tools.framework.simulation;
+
+import java.util.function.Function;
+
+/**
+ * Stops a simulation once a series of values has settled: the range of the
+ * last values in a sliding window, relative to their mean, must not exceed a
+ * tolerance. If the mean is zero, the absolute range is used instead.
+ */
+public class RelativeChangeRule implements StoppingRule {
+	final private String name;
+	final private Function<SimulationHandle, double[]> series;
+	final private int window;
+	final private double tolerance;
+	final private int minimumNumberOfValues;
+
+	public RelativeChangeRule(String name, Function<SimulationHandle, double[]> series, int window, double tolerance,
+			int minimumNumberOfValues) {
+		if (window < 2) {
+			throw new IllegalArgumentException("The window must contain at least two values");
+		}
+
+		this.name = name;
+		this.series = series;
+		this.window = window;
+		this.tolerance = tolerance;
+		this.minimumNumberOfValues = Math.max(window, minimumNumberOfValues);
+	}
+
+	public RelativeChangeRule(String name, Function<SimulationHandle, double[]> series, int window, double tolerance) {
+		this(name, series, window, tolerance, window);
+	}
+
+	/**
+	 * Watches the average executed score in scorestats.txt, i.e. one value per
+	 * iteration.
+	 */
+	static public RelativeChangeRule averageExecutedScore(int window, double tolerance, int minimumNumberOfIterations) {
+		return new RelativeChangeRule("average executed score", h -> h.getScoreStats().getAverageExecuted(), window,
+				tolerance, minimumNumberOfIterations);
+	}
+
+	/**
+	 * Watches a metric that the simulation publishes through the ProgressServer.
+	 */
+	static public RelativeChangeRule metric(String metric, int window, double tolerance, int minimumNumberOfValues) {
+		return new RelativeChangeRule("metric " + metric, h -> h.getMetric(metric), window, tolerance,
+				minimumNumberOfValues);
+	}
+
+	@Override
+	public String check(SimulationHandle handle) {
+		double[] values = series.apply(handle);
+
+		if (values.length < minimumNumberOfValues) {
+			return null;
+		}
+
+		double minimum = Double.POSITIVE_INFINITY;
+		double maximum = Double.NEGATIVE_INFINITY;
+		double sum = 0.0;
+
+		for (int i = values.length - window; i < values.length; i++) {
+			if (Double.isNaN(values[i])) {
+				return null;
+			}
+
+			minimum = Math.min(minimum, values[i]);
+			maximum = Math.max(maximum, values[i]);
+			sum += values[i];
+		}
+
+		double mean = sum / window;
+		double change = mean == 0.0 ? maximum - minimum : (maximum - minimum) / Math.abs(mean);
+
+		if (change <= tolerance) {
+			return String.format("Relative change of %s over the last %d values is %g (tolerance %g)", name, window,
+					change, tolerance);
+		}
+
+		return null;
+	}
+}
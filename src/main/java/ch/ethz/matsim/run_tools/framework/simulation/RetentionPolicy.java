@@ -0,0 +1,44 @@
+package ch.ethz.matsim.run_tools.framework.simulation;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Declares which output files of a finished simulation are kept. Patterns are
+ * globs relative to the output directory (e.g. "*.txt" or "ITERS/**") and the
+ * first matching rule decides. Kept files are compressed into one archive in
+ * the run directory and the output directory is removed.
+ */
+public class RetentionPolicy {
+	public List<Rule> rules = new LinkedList<>();
+	public boolean keepByDefault = false;
+
+	public String archiveName = "output.zip";
+
+	// Once the retained runs use more than this, the least recently used ones are
+	// removed from the run environment
+	public long maximumDiskUsage = Long.MAX_VALUE;
+
+	public RetentionPolicy keep(String pattern) {
+		rules.add(new Rule(pattern, true));
+		return this;
+	}
+
+	public RetentionPolicy drop(String pattern) {
+		rules.add(new Rule(pattern, false));
+		return this;
+	}
+
+	static public class Rule {
+		public String pattern;
+		public boolean keep;
+
+		public Rule() {
+		}
+
+		public Rule(String pattern, boolean keep) {
+			this.pattern = pattern;
+			this.keep = keep;
+		}
+	}
+}
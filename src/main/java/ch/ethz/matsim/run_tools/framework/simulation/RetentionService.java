@@ -0,0 +1,242 @@
+package ch.ethz.matsim.run_tools.framework.simulation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.Selectors;
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ch.ethz.matsim.run_tools.framework.run.RunEnvironment;
+
+/**
+ * Applies a RetentionPolicy to finished simulations on a background thread
+ * pool, so that archiving and deleting outputs does not delay the control loop.
+ * The disk usage of all retained runs is tracked in a state file in the root
+ * directory of the run environment, and the least recently used runs are
+ * removed once the usage exceeds the limit of the policy.
+ */
+public class RetentionService {
+	final private Logger logger = Logger.getLogger(RetentionService.class);
+
+	final private TypeReference<HashMap<String, RetainedRun>> stateTypeReference = new TypeReference<HashMap<String, RetainedRun>>() {
+	};
+
+	final private ObjectMapper objectMapper = new ObjectMapper();
+
+	final private RunEnvironment runEnvironment;
+	final private RetentionPolicy policy;
+	final private ExecutorService executor;
+	final private FileObject stateFile;
+
+	final private List<PathMatcher> matchers = new LinkedList<>();
+	final private Map<String, RetainedRun> retained;
+
+	// Runs that are still read from and are skipped by the eviction
+	final private Set<String> pinned = new HashSet<>();
+
+	public RetentionService(String stateFile, RunEnvironment runEnvironment, RetentionPolicy policy,
+			int numberOfThreads) {
+		this.runEnvironment = runEnvironment;
+		this.policy = policy;
+		this.executor = Executors.newFixedThreadPool(numberOfThreads);
+
+		for (RetentionPolicy.Rule rule : policy.rules) {
+			matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + rule.pattern));
+		}
+
+		try {
+			this.stateFile = runEnvironment.getRootDirectory().resolveFile(stateFile);
+
+			if (this.stateFile.exists()) {
+				retained = objectMapper.readValue(this.stateFile.getContent().getInputStream(), stateTypeReference);
+			} else {
+				retained = new HashMap<>();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public RetentionService(String stateFile, RunEnvironment runEnvironment, RetentionPolicy policy) {
+		this(stateFile, runEnvironment, policy, 1);
+	}
+
+	/**
+	 * Schedules the output of the (stopped) simulation for archiving. The returned
+	 * future completes once the output has been archived and the disk limit is
+	 * enforced again.
+	 */
+	public Future<?> retain(SimulationHandle handle) {
+		String id = handle.getId();
+
+		return executor.submit(() -> {
+			try {
+				archive(handle);
+				long size = getSize(handle.getDirectory());
+
+				synchronized (this) {
+					RetainedRun run = new RetainedRun();
+					run.size = size;
+					run.lastAccess = System.currentTimeMillis();
+					retained.put(id, run);
+
+					evict(id);
+					save();
+				}
+			} catch (IOException | RuntimeException e) {
+				logger.error("Error while retaining output of " + id, e);
+			}
+		});
+	}
+
+	/**
+	 * Marks a retained run as used, so it is evicted later.
+	 */
+	synchronized public void touch(String id) {
+		RetainedRun run = retained.get(id);
+
+		if (run != null) {
+			run.lastAccess = System.currentTimeMillis();
+			save();
+		}
+	}
+
+	/**
+	 * Protects a run from eviction until it is unpinned, e.g. while its files are
+	 * copied into a new run.
+	 */
+	synchronized public void pin(String id) {
+		pinned.add(id);
+	}
+
+	synchronized public void unpin(String id) {
+		pinned.remove(id);
+	}
+
+	synchronized public long getDiskUsage() {
+		return retained.values().stream().mapToLong(r -> r.size).sum();
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private boolean isKept(String path) {
+		for (int i = 0; i < matchers.size(); i++) {
+			if (matchers.get(i).matches(Paths.get(path))) {
+				return policy.rules.get(i).keep;
+			}
+		}
+
+		return policy.keepByDefault;
+	}
+
+	private void archive(SimulationHandle handle) throws IOException {
+		FileObject outputDirectory = handle.getDirectory().resolveFile("output");
+
+		if (!outputDirectory.exists()) {
+			return;
+		}
+
+		FileObject archiveFile = handle.getDirectory().resolveFile(policy.archiveName);
+		int numberOfEntries = 0;
+
+		try (ZipOutputStream outputStream = new ZipOutputStream(archiveFile.getContent().getOutputStream())) {
+			for (FileObject file : outputDirectory.findFiles(Selectors.SELECT_FILES)) {
+				String path = outputDirectory.getName().getRelativeName(file.getName());
+
+				if (isKept(path)) {
+					outputStream.putNextEntry(new ZipEntry(path));
+
+					try (InputStream inputStream = file.getContent().getInputStream()) {
+						IOUtils.copy(inputStream, outputStream);
+					}
+
+					outputStream.closeEntry();
+					numberOfEntries++;
+				}
+			}
+		}
+
+		outputDirectory.deleteAll();
+		logger.info("Archived " + numberOfEntries + " output files of " + handle.getId());
+	}
+
+	private long getSize(FileObject directory) throws FileSystemException {
+		long size = 0;
+
+		for (FileObject file : directory.findFiles(Selectors.SELECT_FILES)) {
+			size += file.getContent().getSize();
+		}
+
+		return size;
+	}
+
+	private void evict(String retainedId) {
+		while (getDiskUsage() > policy.maximumDiskUsage) {
+			String evictId = null;
+			long evictAccess = Long.MAX_VALUE;
+
+			for (Map.Entry<String, RetainedRun> entry : retained.entrySet()) {
+				if (!entry.getKey().equals(retainedId) && !pinned.contains(entry.getKey())
+						&& entry.getValue().lastAccess < evictAccess) {
+					evictId = entry.getKey();
+					evictAccess = entry.getValue().lastAccess;
+				}
+			}
+
+			if (evictId == null) {
+				logger.warn("Disk usage of retained runs exceeds the limit, but nothing can be evicted");
+				return;
+			}
+
+			retained.remove(evictId);
+
+			if (runEnvironment.exists(evictId) && !runEnvironment.isRunning(evictId)) {
+				runEnvironment.remove(evictId);
+				logger.info("Evicted run " + evictId);
+			}
+		}
+	}
+
+	private void save() {
+		try (OutputStream outputStream = stateFile.getContent().getOutputStream()) {
+			objectMapper.writeValue(outputStream, retained);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static private class RetainedRun {
+		public long size;
+		public long lastAccess;
+	}
+}
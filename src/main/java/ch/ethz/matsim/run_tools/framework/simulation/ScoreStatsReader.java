@@ -0,0 +1,137 @@
+package ch.ethz.matsim.run_tools.framework.simulation;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+
+/**
+ * Follows MATSim's scorestats.txt and only parses the lines that have been
+ * appended since the last call. The scores of all iterations are kept in
+ * primitive arrays. If the file disappears or is replaced, or the reader is
+ * reset (e.g. when the run is resumed), the series starts over.
+ */
+public class ScoreStatsReader {
+	final private FileObject file;
+	final private LogTail tail;
+
+	private long numberOfResets = 0;
+
+	private int size = 0;
+	private int[] iterations = new int[64];
+	private double[] averageExecuted = new double[64];
+	private double[] averageWorst = new double[64];
+	private double[] averageAverage = new double[64];
+	private double[] averageBest = new double[64];
+
+	public ScoreStatsReader(FileObject file) {
+		this.file = file;
+
+		// Only complete data lines are of interest, the tail does not need to buffer
+		this.tail = new LogTail(file, 1, 1000);
+		this.tail.subscribe(Pattern.compile("^[0-9]"), this::parse);
+	}
+
+	private void parse(String line) {
+		checkReset();
+		String[] values = line.split("\t");
+
+		try {
+			int iteration = Integer.parseInt(values[0].trim());
+
+			if (size == iterations.length) {
+				iterations = Arrays.copyOf(iterations, size * 2);
+				averageExecuted = Arrays.copyOf(averageExecuted, size * 2);
+				averageWorst = Arrays.copyOf(averageWorst, size * 2);
+				averageAverage = Arrays.copyOf(averageAverage, size * 2);
+				averageBest = Arrays.copyOf(averageBest, size * 2);
+			}
+
+			iterations[size] = iteration;
+			averageExecuted[size] = parseValue(values, 1);
+			averageWorst[size] = parseValue(values, 2);
+			averageAverage[size] = parseValue(values, 3);
+			averageBest[size] = parseValue(values, 4);
+			size++;
+		} catch (NumberFormatException e) {
+			// Malformed lines are skipped
+		}
+	}
+
+	static private double parseValue(String[] values, int index) {
+		return values.length > index ? Double.parseDouble(values[index].trim()) : Double.NaN;
+	}
+
+	/**
+	 * Reads appended lines. Returns false if the file does not exist.
+	 */
+	synchronized public boolean update() {
+		tail.update();
+		checkReset();
+
+		try {
+			return file.exists();
+		} catch (FileSystemException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Discards the series and reads the file from the start at the next update.
+	 */
+	synchronized public void reset() {
+		tail.reset();
+		size = 0;
+	}
+
+	private void checkReset() {
+		if (tail.getNumberOfResets() != numberOfResets) {
+			// The lines read before the reset belong to a replaced file
+			numberOfResets = tail.getNumberOfResets();
+			size = 0;
+		}
+	}
+
+	/**
+	 * Returns the last iteration in the file, 0 if there is none yet, and -1 if
+	 * the file does not exist.
+	 */
+	synchronized public int getLastIteration() {
+		if (!update()) {
+			return -1;
+		}
+
+		return size == 0 ? 0 : iterations[size - 1];
+	}
+
+	synchronized public int size() {
+		update();
+		return size;
+	}
+
+	synchronized public int[] getIterations() {
+		update();
+		return Arrays.copyOf(iterations, size);
+	}
+
+	synchronized public double[] getAverageExecuted() {
+		update();
+		return Arrays.copyOf(averageExecuted, size);
+	}
+
+	synchronized public double[] getAverageWorst() {
+		update();
+		return Arrays.copyOf(averageWorst, size);
+	}
+
+	synchronized public double[] getAverageAverage() {
+		update();
+		return Arrays.copyOf(averageAverage, size);
+	}
+
+	synchronized public double[] getAverageBest() {
+		update();
+		return Arrays.copyOf(averageBest, size);
+	}
+}
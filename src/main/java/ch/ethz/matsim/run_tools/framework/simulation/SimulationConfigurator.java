@@ -5,5 +5,11 @@ import ch.ethz.matsim.run_tools.framework.run.RunDescription;
 public interface SimulationConfigurator {
 	void configureRunner(String id, SimulationDescription description, RunDescription runDescription);
 
+	/**
+	 * Writes the inputs of the simulation into its run directory. This is called
+	 * from several threads at once only if SimulationEnvironment.setupAll is given
+	 * more than one thread (see SPSAOptions.numberOfSetupThreads), in which case
+	 * the implementation needs to be thread-safe.
+	 */
 	void configureSimulation(String id, SimulationDescription description, SimulationHandle handle);
 }
@@ -1,6 +1,13 @@
 package ch.ethz.matsim.run_tools.framework.simulation;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ch.ethz.matsim.run_tools.framework.run.RunDescription;
 import ch.ethz.matsim.run_tools.framework.run.RunEnvironment;
@@ -9,15 +16,25 @@ public class SimulationEnvironment {
 	final private RunEnvironment runEnvironment;
 	final private SimulationConfigurator configurator;
 	final private RunDescription runDescription;
+	final private InputStore inputStore;
+
+	// Handles keep readers with file offsets, so they are reused across recover calls
+	final private Map<String, SimulationHandle> handles = new HashMap<>();
 
 	public SimulationEnvironment(RunDescription runDescription, RunEnvironment runEnvironment,
-			SimulationConfigurator configurator) {
+			SimulationConfigurator configurator, InputStore inputStore) {
 		this.runEnvironment = runEnvironment;
 		this.configurator = configurator;
 		this.runDescription = runDescription;
+		this.inputStore = inputStore;
 	}
 
-	public SimulationHandle setup(String id, SimulationDescription simulationDescription) {
+	public SimulationEnvironment(RunDescription runDescription, RunEnvironment runEnvironment,
+			SimulationConfigurator configurator) {
+		this(runDescription, runEnvironment, configurator, null);
+	}
+
+	private RunDescription createRunDescription(String id, SimulationDescription simulationDescription) {
 		if (runEnvironment.exists(id)) {
 			throw new IllegalStateException("Simulation " + id + " already exists.");
 		}
@@ -27,24 +44,111 @@ public class SimulationEnvironment {
 		newRunDescription.entryPoint = runDescription.entryPoint;
 		newRunDescription.classPath = runDescription.classPath;
 		newRunDescription.memory = runDescription.memory;
+		newRunDescription.cores = runDescription.cores;
+		newRunDescription.priority = runDescription.priority;
 
 		newRunDescription.arguments = new LinkedList<>(runDescription.arguments);
 		newRunDescription.vmArguments = new LinkedList<>(runDescription.vmArguments);
 
 		configurator.configureRunner(id, simulationDescription, newRunDescription);
-		runEnvironment.setup(id, newRunDescription);
+		return newRunDescription;
+	}
 
-		SimulationHandle handle = new SimulationHandle(runEnvironment, id);
+	public SimulationHandle setup(String id, SimulationDescription simulationDescription) {
+		runEnvironment.setup(id, createRunDescription(id, simulationDescription));
+
+		SimulationHandle handle = new SimulationHandle(runEnvironment, id, inputStore);
 		configurator.configureSimulation(id, simulationDescription, handle);
+
+		synchronized (handles) {
+			handles.put(id, handle);
+		}
+
 		return handle;
 	}
 
+	/**
+	 * Sets up several simulations at once. The runs are registered with the run
+	 * environment in one step, so its state is written only once, and the
+	 * simulations are configured one after the other. The handles are returned in
+	 * the order of the descriptions.
+	 */
+	public Map<String, SimulationHandle> setupAll(Map<String, SimulationDescription> simulationDescriptions) {
+		return setupAll(simulationDescriptions, 1);
+	}
+
+	/**
+	 * Like setupAll, but configures the simulations concurrently on up to the
+	 * given number of threads, which requires a thread-safe
+	 * SimulationConfigurator. The handles are returned once all simulations are
+	 * ready.
+	 */
+	public Map<String, SimulationHandle> setupAll(Map<String, SimulationDescription> simulationDescriptions,
+			int numberOfThreads) {
+		Map<String, RunDescription> runDescriptions = new LinkedHashMap<>();
+
+		for (Map.Entry<String, SimulationDescription> entry : simulationDescriptions.entrySet()) {
+			runDescriptions.put(entry.getKey(), createRunDescription(entry.getKey(), entry.getValue()));
+		}
+
+		runEnvironment.setupAll(runDescriptions);
+
+		Map<String, SimulationHandle> result = new LinkedHashMap<>();
+
+		for (String id : simulationDescriptions.keySet()) {
+			result.put(id, new SimulationHandle(runEnvironment, id, inputStore));
+		}
+
+		if (numberOfThreads <= 1 || simulationDescriptions.size() <= 1) {
+			for (Map.Entry<String, SimulationDescription> entry : simulationDescriptions.entrySet()) {
+				configurator.configureSimulation(entry.getKey(), entry.getValue(), result.get(entry.getKey()));
+			}
+		} else {
+			configureConcurrently(simulationDescriptions, result, numberOfThreads);
+		}
+
+		synchronized (handles) {
+			handles.putAll(result);
+		}
+
+		return result;
+	}
+
+	private void configureConcurrently(Map<String, SimulationDescription> simulationDescriptions,
+			Map<String, SimulationHandle> simulationHandles, int numberOfThreads) {
+		Map<String, Future<?>> futures = new LinkedHashMap<>();
+		ExecutorService executor = Executors
+				.newFixedThreadPool(Math.min(simulationDescriptions.size(), numberOfThreads));
+
+		try {
+			for (Map.Entry<String, SimulationDescription> entry : simulationDescriptions.entrySet()) {
+				String id = entry.getKey();
+				SimulationHandle handle = simulationHandles.get(id);
+				futures.put(id, executor.submit(() -> configurator.configureSimulation(id, entry.getValue(), handle)));
+			}
+
+			for (Map.Entry<String, Future<?>> entry : futures.entrySet()) {
+				try {
+					entry.getValue().get();
+				} catch (ExecutionException e) {
+					throw new RuntimeException("Error while setting up simulation " + entry.getKey(), e.getCause());
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
 	public SimulationHandle recover(String id) {
 		if (!runEnvironment.exists(id)) {
 			throw new IllegalStateException("Simulation " + id + " does not exists.");
 		}
 
-		return new SimulationHandle(runEnvironment, id);
+		synchronized (handles) {
+			return handles.computeIfAbsent(id, i -> new SimulationHandle(runEnvironment, i, inputStore));
+		}
 	}
 
 	public boolean exists(String id) {
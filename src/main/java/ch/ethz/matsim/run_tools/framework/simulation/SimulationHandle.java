@@ -1,29 +1,90 @@
 package ch.ethz.matsim.run_tools.framework.simulation;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.vfs2.FileObject;
 import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.Selectors;
+import org.matsim.core.config.Config;
+import org.matsim.core.utils.io.UncheckedIOException;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ch.ethz.matsim.run_tools.framework.progress.ProgressClient;
+import ch.ethz.matsim.run_tools.framework.progress.ProgressEvent;
+import ch.ethz.matsim.run_tools.framework.run.LocalCopy;
 import ch.ethz.matsim.run_tools.framework.run.RunEnvironment;
+import ch.ethz.matsim.run_tools.framework.run.RunStatus;
 
 public class SimulationHandle {
+	final private static String STOP_REASON_FILE = "stop_reason.json";
+	final private static String RESUME_PLANS_FILE = "resume_plans.xml.gz";
+	final private static ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
 	final private RunEnvironment environment;
 	final private String id;
+	final private InputStore inputStore;
 
-	public SimulationHandle(RunEnvironment environment, String id) {
+	private LogTail outputLog = null;
+	private LogTail errorLog = null;
+	private ScoreStatsReader scoreStats = null;
+	private ProgressClient progress = null;
+
+	// Metrics published by the simulation, recorded once the progress channel is open
+	final private Map<String, List<Double>> metrics = new HashMap<>();
+
+	public SimulationHandle(RunEnvironment environment, String id, InputStore inputStore) {
 		this.environment = environment;
 		this.id = id;
+		this.inputStore = inputStore;
+	}
+
+	public SimulationHandle(RunEnvironment environment, String id) {
+		this(environment, id, null);
+	}
+
+	public String getId() {
+		return id;
 	}
 
 	public FileObject getDirectory() {
 		return environment.getRunDirectory(id);
 	}
 
+	/**
+	 * Makes the source file available at the given path in the run directory.
+	 * With an InputStore, the content is deduplicated across runs, otherwise it is
+	 * copied.
+	 */
+	public void addInput(FileObject source, String path) {
+		try {
+			FileObject target = getDirectory().resolveFile(path);
+
+			if (inputStore != null) {
+				inputStore.link(inputStore.register(source), target);
+			} else {
+				target.copyFrom(source, Selectors.SELECT_SELF);
+			}
+		} catch (FileSystemException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public void start() {
+		try {
+			getDirectory().resolveFile(STOP_REASON_FILE).delete();
+		} catch (FileSystemException e) {
+			throw new RuntimeException(e);
+		}
+
 		environment.start(id);
 	}
 
@@ -35,28 +96,326 @@ public class SimulationHandle {
 		return environment.isRunning(id);
 	}
 
+	/**
+	 * Returns whether the environment reports that the last execution of the run
+	 * has ended with an error.
+	 */
+	public boolean hasFailed() {
+		return environment.getStatuses(Collections.singleton(id)).get(id) == RunStatus.FAILED;
+	}
+
+	/**
+	 * Returns the last iteration in output/scorestats.txt, or -1 if there is no
+	 * such file. Only lines appended since the last call are parsed.
+	 */
 	public int getIteration() {
-		int iteration = 0;
+		return getScoreStats().getLastIteration();
+	}
+
+	synchronized public ScoreStatsReader getScoreStats() {
+		if (scoreStats == null) {
+			scoreStats = new ScoreStatsReader(resolve("output/scorestats.txt"));
+		}
+
+		return scoreStats;
+	}
+
+	/**
+	 * Returns the channel of events pushed by a simulation that runs with the
+	 * ProgressModule (e.g. through RunWithProgress). The client connects in the
+	 * background and works for runs on the local host only.
+	 */
+	synchronized public ProgressClient getProgress() {
+		if (progress == null) {
+			progress = new ProgressClient(getDirectory());
+			progress.subscribe(this::recordMetric);
+			progress.start();
+		}
+
+		return progress;
+	}
+
+	/**
+	 * Closes the progress channel, e.g. once the run has finished. It is opened
+	 * again by the next call to getProgress.
+	 */
+	synchronized public void closeProgress() {
+		if (progress != null) {
+			progress.close();
+			progress = null;
+		}
+	}
+
+	private void recordMetric(ProgressEvent event) {
+		synchronized (metrics) {
+			if (ProgressEvent.STARTUP.equals(event.type)) {
+				// The simulation has been restarted
+				metrics.clear();
+			} else if (ProgressEvent.METRIC.equals(event.type)) {
+				metrics.computeIfAbsent(event.name, n -> new ArrayList<>()).add(event.value);
+			}
+		}
+	}
+
+	/**
+	 * Returns the values of a metric published through the ProgressServer, in the
+	 * order they have been received. Recording starts with the first call.
+	 */
+	public double[] getMetric(String name) {
+		getProgress();
+
+		synchronized (metrics) {
+			List<Double> values = metrics.getOrDefault(name, Collections.emptyList());
+			return values.stream().mapToDouble(Double::doubleValue).toArray();
+		}
+	}
+
+	/**
+	 * Checks the stopping rules in order while the simulation is running. If one
+	 * of them fires, the run is stopped, the reason is written to
+	 * stop_reason.json in the run directory and returned. Otherwise, null is
+	 * returned.
+	 */
+	public String stopIfConverged(Collection<StoppingRule> rules) {
+		if (rules.isEmpty() || !isRunning()) {
+			return null;
+		}
+
+		for (StoppingRule rule : rules) {
+			String reason = rule.check(this);
+
+			if (reason != null) {
+				StopReason stopReason = new StopReason();
+				stopReason.reason = reason;
+				stopReason.iteration = getIteration();
+				stopReason.time = System.currentTimeMillis();
+
+				environment.stop(id);
+
+				try (OutputStream outputStream = resolve(STOP_REASON_FILE).getContent().getOutputStream()) {
+					OBJECT_MAPPER.writeValue(outputStream, stopReason);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+
+				return reason;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns why the run has been stopped early, or null if it has not.
+	 */
+	public String getStopReason() {
+		FileObject file = resolve(STOP_REASON_FILE);
 
 		try {
-			InputStream inputStream = getDirectory().resolveFile("output/scorestats.txt").getContent().getInputStream();
-			BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+			if (!file.exists()) {
+				return null;
+			}
+
+			try (InputStream inputStream = file.getContent().getInputStream()) {
+				return OBJECT_MAPPER.readValue(inputStream, StopReason.class).reason;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static private class StopReason {
+		public String reason;
+		public int iteration;
+		public long time;
+	}
 
-			String line = null;
-			while ((line = reader.readLine()) != null) {
-				if (line.startsWith("ITERATION")) {
+	/**
+	 * Returns a tail of run_output.log that only reads what has been appended
+	 * since the last access. The tail is kept with this handle.
+	 */
+	synchronized public LogTail getOutputLog() {
+		if (outputLog == null) {
+			outputLog = new LogTail(resolve("run_output.log"));
+		}
+
+		return outputLog;
+	}
+
+	synchronized public LogTail getErrorLog() {
+		if (errorLog == null) {
+			errorLog = new LogTail(resolve("run_error.log"));
+		}
+
+		return errorLog;
+	}
+
+	/**
+	 * Returns a file of the run directory for reading. With a
+	 * CachingRunEnvironment, this is a local copy that is only transferred again
+	 * once the file has changed, which makes repeated reads of remote outputs
+	 * cheap. The file must not be modified, and the copy needs to be closed after
+	 * reading, e.g. with try-with-resources.
+	 */
+	public LocalCopy getLocalFile(String path) {
+		return environment.getLocalCopy(resolve(path));
+	}
+
+	private FileObject resolve(String path) {
+		try {
+			return getDirectory().resolveFile(path);
+		} catch (FileSystemException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns the last iteration that has been completed and for which the plans
+	 * have been written, or -1 if the run cannot be resumed.
+	 */
+	public int getLastCheckpoint() {
+		Checkpoint checkpoint = findCheckpoint();
+		return checkpoint == null ? -1 : checkpoint.iteration;
+	}
+
+	private Checkpoint findCheckpoint() {
+		int lastIteration = getIteration();
+
+		try {
+			FileObject iterationsDirectory = getDirectory().resolveFile("output/ITERS");
+
+			if (lastIteration < 0 || !iterationsDirectory.exists()) {
+				return null;
+			}
+
+			Checkpoint checkpoint = null;
+
+			for (FileObject iterationDirectory : iterationsDirectory.getChildren()) {
+				String name = iterationDirectory.getName().getBaseName();
+
+				if (!name.matches("it\\.[0-9]+")) {
 					continue;
 				}
 
-				iteration = Integer.parseInt(line.split("\t")[0]);
+				int iteration = Integer.parseInt(name.substring(3));
+
+				// Plans are written before the mobsim, so they are only complete if the
+				// iteration has been scored
+				if (iteration > lastIteration || (checkpoint != null && iteration <= checkpoint.iteration)) {
+					continue;
+				}
+
+				for (FileObject file : iterationDirectory.getChildren()) {
+					if (file.getName().getBaseName().endsWith("plans.xml.gz")) {
+						checkpoint = new Checkpoint();
+						checkpoint.iteration = iteration;
+						checkpoint.plansPath = getDirectory().resolveFile("output").getName()
+								.getRelativeName(file.getName());
+					}
+				}
+			}
+
+			return checkpoint;
+		} catch (FileSystemException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Restarts a stopped or crashed run. If plans of a completed iteration are
+	 * available, they are kept in the run directory, the output is cleared and the
+	 * MATSim config at the given path (relative to the run directory) is changed
+	 * to continue from these plans and that iteration. Otherwise, the run starts
+	 * over. Returns the iteration the run continues from.
+	 */
+	public int resume(String configPath) {
+		if (isRunning()) {
+			throw new IllegalStateException("Simulation " + id + " is still running");
+		}
+
+		Checkpoint checkpoint = findCheckpoint();
+
+		if (checkpoint == null) {
+			clearOutput();
+			resetReaders();
+			start();
+			return 0;
+		}
+
+		try {
+			// Only the plans are kept, so repeated resumes do not pile up outputs. The
+			// config may still point to the previous copy, which is simply replaced.
+			FileObject plansFile = getDirectory().resolveFile(RESUME_PLANS_FILE);
+			plansFile.copyFrom(getDirectory().resolveFile("output").resolveFile(checkpoint.plansPath),
+					Selectors.SELECT_SELF);
+			getDirectory().resolveFile("output").deleteAll();
+
+			// MATSim resolves input files relative to the directory of the config
+			FileObject configFile = getDirectory().resolveFile(configPath);
+			Config config = ConfigTemplate.readConfig(configFile);
+
+			config.plans().setInputFile(configFile.getParent().getName().getRelativeName(plansFile.getName()));
+			config.controler().setFirstIteration(checkpoint.iteration);
+
+			ConfigTemplate.write(config, configFile);
+		} catch (IOException | UncheckedIOException e) {
+			throw new RuntimeException("Error while preparing simulation " + id + " for resume", e);
+		}
+
+		resetReaders();
+		start();
+		return checkpoint.iteration;
+	}
+
+	/**
+	 * Makes the readers of the handle start over, as the restarted run writes new
+	 * score stats and logs. Subscriptions are kept.
+	 */
+	synchronized private void resetReaders() {
+		if (scoreStats != null) {
+			scoreStats.reset();
+		}
+
+		if (outputLog != null) {
+			outputLog.reset();
+		}
+
+		if (errorLog != null) {
+			errorLog.reset();
+		}
+	}
+
+	/**
+	 * Copies the final plans of the run, or else the plans of the last completed
+	 * iteration, to the given path in the run directory, where they are not
+	 * affected by clearing or archiving the output. Returns the copy, or null if
+	 * there are no plans.
+	 */
+	public FileObject preservePlans(String path) {
+		try {
+			FileObject source = getDirectory().resolveFile("output/output_plans.xml.gz");
+
+			if (!source.exists()) {
+				Checkpoint checkpoint = findCheckpoint();
+
+				if (checkpoint == null) {
+					return null;
+				}
+
+				source = getDirectory().resolveFile("output").resolveFile(checkpoint.plansPath);
 			}
 
-			reader.close();
-		} catch (IOException | NumberFormatException e) {
-			iteration = -1;
+			FileObject target = getDirectory().resolveFile(path);
+			target.copyFrom(source, Selectors.SELECT_SELF);
+			return target;
+		} catch (FileSystemException e) {
+			throw new RuntimeException(e);
 		}
+	}
 
-		return iteration;
+	static private class Checkpoint {
+		int iteration;
+		String plansPath;
 	}
 
 	public boolean hasOutput() {
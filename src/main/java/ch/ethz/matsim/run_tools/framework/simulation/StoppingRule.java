@@ -0,0 +1,13 @@
+package ch.ethz.matsim.run_tools.framework.simulation;
+
+/**
+ * Decides whether a running simulation has converged and can be stopped before
+ * its last iteration. Rules are checked repeatedly while the simulation runs,
+ * so they should only look at data that is cheap to update.
+ */
+public interface StoppingRule {
+	/**
+	 * Returns why the simulation should be stopped, or null if it should go on.
+	 */
+	String check(SimulationHandle handle);
+}
@@ -0,0 +1,226 @@
+package ch.ethz.matsim.run_tools.spsa;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.log4j.Logger;
+
+import ch.ethz.matsim.run_tools.framework.progress.ProgressEvent;
+import ch.ethz.matsim.run_tools.framework.progress.ProgressServer;
+import ch.ethz.matsim.run_tools.framework.simulation.SimulationHandle;
+
+/**
+ * Runs several SPSAEnvironments on one scheduler instead of an outer loop
+ * that calls update. Each environment is updated again after an interval that
+ * is reset when there has been progress and doubles otherwise, up to a
+ * maximum. If progress events are enabled (they are not by default), the
+ * driver listens to the running simulations that have published a progress
+ * port and updates an environment right away when one of them ends an
+ * iteration or shuts down. Every such simulation costs one client thread.
+ *
+ * All state stays in the files of the SPSAEnvironments, so a driver that has
+ * been stopped can be replaced by a new one at any time.
+ */
+public class SPSADriver {
+	final private Logger logger = Logger.getLogger(SPSADriver.class);
+
+	final private ScheduledExecutorService executor;
+	final private long minimumInterval;
+	final private long maximumInterval;
+	final private boolean useProgressEvents;
+
+	final private List<Task> tasks = new LinkedList<>();
+
+	public SPSADriver(int numberOfThreads, long minimumInterval, long maximumInterval, boolean useProgressEvents) {
+		this.executor = Executors.newScheduledThreadPool(numberOfThreads);
+		this.minimumInterval = minimumInterval;
+		this.maximumInterval = maximumInterval;
+		this.useProgressEvents = useProgressEvents;
+	}
+
+	public SPSADriver(int numberOfThreads) {
+		this(numberOfThreads, 1000, 60000, false);
+	}
+
+	synchronized public void add(SPSAEnvironment environment) {
+		Task task = new Task(environment);
+		tasks.add(task);
+		task.schedule(0);
+	}
+
+	/**
+	 * Returns the number of environments that are still driven, i.e. that have
+	 * not failed.
+	 */
+	synchronized public int getNumberOfEnvironments() {
+		return tasks.size();
+	}
+
+	synchronized public void shutdown() {
+		for (Task task : tasks) {
+			task.close();
+		}
+
+		tasks.clear();
+		executor.shutdown();
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+
+	synchronized private void remove(Task task) {
+		tasks.remove(task);
+	}
+
+	private class Task implements Runnable {
+		final private SPSAEnvironment environment;
+		final private Consumer<ProgressEvent> listener = this::handleEvent;
+
+		// Handles whose progress channel this task listens to, guarded by the task
+		final private Map<String, SimulationHandle> handles = new HashMap<>();
+
+		private long interval = minimumInterval;
+		private ScheduledFuture<?> future = null;
+		private boolean running = false;
+		private boolean wakeRequested = false;
+		private boolean closed = false;
+
+		Task(SPSAEnvironment environment) {
+			this.environment = environment;
+		}
+
+		synchronized void schedule(long delay) {
+			if (closed) {
+				return;
+			}
+
+			if (future != null) {
+				future.cancel(false);
+			}
+
+			future = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+		}
+
+		private void handleEvent(ProgressEvent event) {
+			if (ProgressEvent.ITERATION_ENDS.equals(event.type) || ProgressEvent.SHUTDOWN.equals(event.type)) {
+				wake();
+			}
+		}
+
+		synchronized void wake() {
+			interval = minimumInterval;
+
+			if (running) {
+				// Update once more right after the current update
+				wakeRequested = true;
+			} else {
+				schedule(0);
+			}
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+
+				running = true;
+				wakeRequested = false;
+			}
+
+			boolean progress = false;
+			boolean failed = true;
+
+			try {
+				progress = environment.update();
+
+				if (useProgressEvents) {
+					updateSubscriptions();
+				}
+
+				failed = false;
+			} catch (Throwable e) {
+				// Errors are caught as well, otherwise the task would silently not be
+				// rescheduled while it is still counted
+				logger.error("Calibration " + environment.getPrefix() + " has failed and is not driven anymore", e);
+			} finally {
+				synchronized (this) {
+					running = false;
+
+					if (!failed) {
+						interval = progress ? minimumInterval : Math.min(2 * interval, maximumInterval);
+						schedule(wakeRequested ? 0 : interval);
+					}
+				}
+			}
+
+			if (failed) {
+				close();
+				remove(this);
+			}
+		}
+
+		private void updateSubscriptions() {
+			Map<String, SimulationHandle> active = new HashMap<>();
+
+			for (SimulationHandle handle : environment.getActiveHandles()) {
+				active.put(handle.getId(), handle);
+			}
+
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+
+				for (SimulationHandle handle : active.values()) {
+					// Simulations without a progress server (yet) would only keep a client
+					// thread polling for the port file
+					if (!handles.containsKey(handle.getId()) && hasProgressServer(handle)) {
+						handle.getProgress().subscribe(listener);
+						handles.put(handle.getId(), handle);
+					}
+				}
+
+				for (SimulationHandle handle : new LinkedList<>(handles.values())) {
+					if (!active.containsKey(handle.getId())) {
+						// The evaluation has finished, so nobody needs its progress channel anymore
+						handle.closeProgress();
+						handles.remove(handle.getId());
+					}
+				}
+			}
+		}
+
+		private boolean hasProgressServer(SimulationHandle handle) {
+			try {
+				return handle.getDirectory().resolveFile(ProgressServer.PORT_FILE).exists();
+			} catch (FileSystemException e) {
+				return false;
+			}
+		}
+
+		synchronized void close() {
+			closed = true;
+
+			if (future != null) {
+				future.cancel(false);
+			}
+
+			for (SimulationHandle handle : handles.values()) {
+				handle.getProgress().unsubscribe(listener);
+			}
+
+			handles.clear();
+		}
+	}
+}
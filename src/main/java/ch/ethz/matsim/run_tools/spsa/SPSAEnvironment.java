@@ -2,13 +2,18 @@ package ch.ethz.matsim.run_tools.spsa;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.vfs2.FileObject;
 import org.apache.commons.vfs2.FileSystemException;
 import org.apache.log4j.Logger;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonSetter;
 import com.fasterxml.jackson.core.JsonGenerationException;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
@@ -16,6 +21,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 
 import ch.ethz.matsim.run_tools.framework.run.RunEnvironment;
+import ch.ethz.matsim.run_tools.framework.simulation.RetentionService;
 import ch.ethz.matsim.run_tools.framework.simulation.SimulationDescription;
 import ch.ethz.matsim.run_tools.framework.simulation.SimulationEnvironment;
 import ch.ethz.matsim.run_tools.framework.simulation.SimulationHandle;
@@ -23,6 +29,8 @@ import ch.ethz.matsim.run_tools.spsa.projection.SPSAProjection;
 import ch.ethz.matsim.run_tools.spsa.sampler.SPSASampler;
 
 public class SPSAEnvironment {
+	final private static String WARM_START_PLANS = "warm_start_plans.xml.gz";
+
 	final private Logger logger;
 	final private SimulationEnvironment simulationEnvironment;
 
@@ -31,6 +39,8 @@ public class SPSAEnvironment {
 	final private SPSAProjection projection;
 	final private SPSADescriptionFactory descriptionFactory;
 	final private SPSASequence sequence;
+	final private RetentionService retentionService;
+	final private SPSAOptions options;
 
 	final private State state;
 	final private FileObject calibrationFile;
@@ -43,10 +53,14 @@ public class SPSAEnvironment {
 	
 	final private ObjectMapper objectMapper;
 
+	// Set whenever the state is saved, to tell callers of update about progress
+	private boolean changed = false;
+
 	public SPSAEnvironment(RunEnvironment runEnvironment, SimulationEnvironment simulationEnvironment,
 			SPSAObjective objective, SPSASampler sampler, SPSAProjection projection,
 			SPSADescriptionFactory descriptionFactory, SPSASequence sequence, String prefix,
-			List<Double> initialCandidate, int numberOfSimulationIterations, int intermediateObjectiveInterval)
+			List<Double> initialCandidate, int numberOfSimulationIterations, int intermediateObjectiveInterval,
+			RetentionService retentionService, SPSAOptions options)
 			throws JsonParseException, JsonMappingException, IOException {
 		this.objectMapper = new ObjectMapper();
 		objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
@@ -60,6 +74,8 @@ public class SPSAEnvironment {
 		this.projection = projection;
 		this.descriptionFactory = descriptionFactory;
 		this.sequence = sequence;
+		this.retentionService = retentionService;
+		this.options = options;
 
 		this.numberOfDimensions = initialCandidate.size();
 		this.initialCandidate = initialCandidate;
@@ -68,6 +84,10 @@ public class SPSAEnvironment {
 
 		this.logger = Logger.getLogger("SPSA " + prefix);
 
+		if (options.warmStart && !(descriptionFactory instanceof WarmStartDescriptionFactory)) {
+			throw new IllegalStateException("Warm start requires a WarmStartDescriptionFactory");
+		}
+
 		if (calibrationFile.exists()) {
 			state = objectMapper.readValue(calibrationFile.getContent().getInputStream(), State.class);
 			logger.info("Initialized SPSA from " + calibrationFile.getName().getPath());
@@ -77,12 +97,32 @@ public class SPSAEnvironment {
 		}
 	}
 
+	public SPSAEnvironment(RunEnvironment runEnvironment, SimulationEnvironment simulationEnvironment,
+			SPSAObjective objective, SPSASampler sampler, SPSAProjection projection,
+			SPSADescriptionFactory descriptionFactory, SPSASequence sequence, String prefix,
+			List<Double> initialCandidate, int numberOfSimulationIterations, int intermediateObjectiveInterval)
+			throws JsonParseException, JsonMappingException, IOException {
+		this(runEnvironment, simulationEnvironment, objective, sampler, projection, descriptionFactory, sequence, prefix,
+				initialCandidate, numberOfSimulationIterations, intermediateObjectiveInterval, null);
+	}
+
+	public SPSAEnvironment(RunEnvironment runEnvironment, SimulationEnvironment simulationEnvironment,
+			SPSAObjective objective, SPSASampler sampler, SPSAProjection projection,
+			SPSADescriptionFactory descriptionFactory, SPSASequence sequence, String prefix,
+			List<Double> initialCandidate, int numberOfSimulationIterations, int intermediateObjectiveInterval,
+			RetentionService retentionService) throws JsonParseException, JsonMappingException, IOException {
+		this(runEnvironment, simulationEnvironment, objective, sampler, projection, descriptionFactory, sequence, prefix,
+				initialCandidate, numberOfSimulationIterations, intermediateObjectiveInterval, retentionService,
+				new SPSAOptions());
+	}
+
 	private String buildSimulationId(String id) {
 		return prefix + "_" + id;
 	}
 
 	private void save() throws JsonGenerationException, JsonMappingException, FileSystemException, IOException {
 		objectMapper.writeValue(calibrationFile.getContent().getOutputStream(), state);
+		changed = true;
 	}
 
 	private List<Double> buildPerturbation() {
@@ -121,55 +161,245 @@ public class SPSAEnvironment {
 		return Arrays.asList(firstGradientCandidate, secondGradientCandidate);
 	}
 
+	private String buildGradientId(String name, int n, int pair) {
+		// The first pair keeps the names of single-perturbation calibrations
+		return buildSimulationId(pair == 0 ? name + "_" + n : name + "_" + n + "_" + (pair + 1));
+	}
+
+	private Evaluation createEvaluation(String simulationId, List<Double> candidate) throws FileSystemException {
+		Evaluation evaluation = new Evaluation();
+		evaluation.simulationId = simulationId;
+		evaluation.candidate = candidate;
+
+		Evaluation warmStartEvaluation = findWarmStartEvaluation(candidate);
+
+		if (warmStartEvaluation != null) {
+			FileObject plans = simulationEnvironment.recover(warmStartEvaluation.simulationId).getDirectory()
+					.resolveFile(WARM_START_PLANS);
+
+			evaluation.description = ((WarmStartDescriptionFactory) descriptionFactory).create(candidate, plans);
+			evaluation.warmStartId = warmStartEvaluation.simulationId;
+			evaluation.numberOfIterations = options.numberOfWarmStartIterations;
+		} else {
+			evaluation.description = descriptionFactory.create(candidate);
+		}
+
+		return evaluation;
+	}
+
+	/**
+	 * Returns the finished evaluation of the previous iteration whose candidate is
+	 * closest to the given one and whose plans have been preserved.
+	 */
+	private Evaluation findWarmStartEvaluation(List<Double> candidate) throws FileSystemException {
+		if (!options.warmStart || state.iterations.size() == 0) {
+			return null;
+		}
+
+		Evaluation closestEvaluation = null;
+		double closestDistance = Double.POSITIVE_INFINITY;
+
+		for (Evaluation evaluation : state.iterations.get(state.iterations.size() - 1).getEvaluations()) {
+			if (evaluation.objective == null || evaluation.candidate == null
+					|| !simulationEnvironment.exists(evaluation.simulationId)) {
+				continue;
+			}
+
+			if (!simulationEnvironment.recover(evaluation.simulationId).getDirectory().resolveFile(WARM_START_PLANS)
+					.exists()) {
+				continue;
+			}
+
+			double distance = 0.0;
+
+			for (int i = 0; i < numberOfDimensions; i++) {
+				distance += Math.pow(candidate.get(i) - evaluation.candidate.get(i), 2.0);
+			}
+
+			if (distance < closestDistance) {
+				closestDistance = distance;
+				closestEvaluation = evaluation;
+			}
+		}
+
+		return closestEvaluation;
+	}
+
+	private int getNumberOfIterations(Evaluation evaluation) {
+		return evaluation.numberOfIterations == null ? numberOfSimulationIterations : evaluation.numberOfIterations;
+	}
+
 	private void startIteration(List<Double> candidate)
 			throws JsonGenerationException, JsonMappingException, FileSystemException, IOException {
 		int n = state.iterations.size() + 1;
 		double c = sequence.getPerturbationFactor(n);
 
-		List<Double> perturbation = buildPerturbation();
-		List<List<Double>> gradientCandidates = buildGradientCandidates(c, perturbation, candidate);
+		// Runs that may provide warm start plans must not be evicted before the new
+		// runs have copied them during setup
+		List<String> pinnedIds = new LinkedList<>();
 
-		Evaluation objectiveEvaluation = new Evaluation();
-		objectiveEvaluation.description = descriptionFactory.create(candidate);
-		objectiveEvaluation.simulationId = buildSimulationId("objective_" + n);
+		if (options.warmStart && retentionService != null && state.iterations.size() > 0) {
+			for (Evaluation evaluation : state.iterations.get(state.iterations.size() - 1).getEvaluations()) {
+				retentionService.pin(evaluation.simulationId);
+				pinnedIds.add(evaluation.simulationId);
+			}
+		}
 
-		Evaluation firstGradientEvaluation = new Evaluation();
-		firstGradientEvaluation.description = descriptionFactory.create(gradientCandidates.get(0));
-		firstGradientEvaluation.simulationId = buildSimulationId("first_gradient_" + n);
+		try {
+			setupIteration(n, c, candidate);
+		} finally {
+			for (String id : pinnedIds) {
+				retentionService.unpin(id);
+			}
+		}
 
-		Evaluation secondGradientEvaluation = new Evaluation();
-		secondGradientEvaluation.description = descriptionFactory.create(gradientCandidates.get(1));
-		secondGradientEvaluation.simulationId = buildSimulationId("second_gradient_" + n);
+		save();
+	}
 
+	private void setupIteration(int n, double c, List<Double> candidate) throws FileSystemException {
 		SPSAIteration iteration = new SPSAIteration();
-		iteration.objectiveEvaluation = objectiveEvaluation;
-		iteration.firstGradientEvaluation = firstGradientEvaluation;
-		iteration.secondGradientEvaluation = secondGradientEvaluation;
-		iteration.perturbation = perturbation;
 		iteration.candidate = candidate;
 
+		iteration.objectiveEvaluation = createEvaluation(buildSimulationId("objective_" + n), candidate);
+
+		for (int k = 0; k < options.numberOfPerturbations; k++) {
+			List<Double> perturbation = buildPerturbation();
+			List<List<Double>> gradientCandidates = buildGradientCandidates(c, perturbation, candidate);
+
+			GradientPair pair = new GradientPair();
+			pair.perturbation = perturbation;
+
+			pair.firstGradientEvaluation = createEvaluation(buildGradientId("first_gradient", n, k),
+					gradientCandidates.get(0));
+			pair.secondGradientEvaluation = createEvaluation(buildGradientId("second_gradient", n, k),
+					gradientCandidates.get(1));
+
+			iteration.gradientPairs.add(pair);
+		}
+
 		state.iterations.add(iteration);
-		state.lastObjectiveIteration = -1;
-		state.lastFirstGradientIteration = -1;
-		state.lastSecondGradientIteration = -1;
 
-		SimulationHandle objectiveHandle = simulationEnvironment.setup(objectiveEvaluation.simulationId,
-				objectiveEvaluation.description);
-		SimulationHandle firstGradientHandle = simulationEnvironment.setup(firstGradientEvaluation.simulationId,
-				firstGradientEvaluation.description);
-		SimulationHandle secondGradientHandle = simulationEnvironment.setup(secondGradientEvaluation.simulationId,
-				secondGradientEvaluation.description);
+		// All runs of the iteration are set up and started at once
+		Map<String, SimulationDescription> descriptions = new LinkedHashMap<>();
+
+		for (Evaluation evaluation : iteration.getEvaluations()) {
+			descriptions.put(evaluation.simulationId, evaluation.description);
+		}
 
-		objectiveHandle.start();
-		firstGradientHandle.start();
-		secondGradientHandle.start();
+		Map<String, SimulationHandle> handles = simulationEnvironment.setupAll(descriptions,
+				options.numberOfSetupThreads);
+
+		for (SimulationHandle handle : handles.values()) {
+			handle.start();
+		}
+	}
+
+	private void finishEvaluation(Evaluation evaluation, SimulationHandle handle, double value) {
+		evaluation.objective = value;
+
+		if (options.warmStart) {
+			// Plans in the output may be removed below, but the next iteration starts from them
+			handle.preservePlans(WARM_START_PLANS);
+		}
+
+		if (retentionService != null) {
+			retentionService.retain(handle);
+		} else {
+			handle.clearIterations();
+		}
+	}
+
+	/**
+	 * Applies the gradient rule to all pairs of the iteration at the last
+	 * intermediate point that all gradient runs have reached. The differences
+	 * and the decision of every check are recorded with the pairs. Once the rule
+	 * has fired for every pair, all gradient runs are stopped and the gradient is
+	 * estimated from their objectives at that common point, so all pairs share
+	 * the same horizon. Returns whether the runs have been stopped.
+	 */
+	private boolean stopStableGradients(SPSAIteration iteration)
+			throws JsonGenerationException, JsonMappingException, FileSystemException, IOException {
+		if (options.gradientRule == null) {
+			return false;
+		}
+
+		int numberOfPoints = Integer.MAX_VALUE;
+
+		for (GradientPair pair : iteration.gradientPairs) {
+			for (Evaluation evaluation : Arrays.asList(pair.firstGradientEvaluation, pair.secondGradientEvaluation)) {
+				if (evaluation.objective != null) {
+					// Runs that have reached their horizon are not mixed with stopped ones
+					return false;
+				}
+
+				numberOfPoints = Math.min(numberOfPoints, evaluation.intermediateObjectives.size());
+			}
+		}
+
+		if (numberOfPoints == 0 || numberOfPoints == Integer.MAX_VALUE) {
+			return false;
+		}
+
+		boolean checked = false;
+		boolean stable = true;
+
+		for (GradientPair pair : iteration.gradientPairs) {
+			List<Double> differences = new LinkedList<>();
+
+			for (int i = 0; i < numberOfPoints; i++) {
+				differences.add(pair.firstGradientEvaluation.intermediateObjectives.get(i)
+						- pair.secondGradientEvaluation.intermediateObjectives.get(i));
+			}
+
+			if (!differences.equals(pair.intermediateDifferences)) {
+				pair.intermediateDifferences = differences;
+				pair.decision = options.gradientRule.check(differences);
+				checked = true;
+			}
+
+			stable &= pair.decision != null;
+		}
+
+		if (!checked) {
+			return false;
+		}
+
+		if (stable) {
+			for (GradientPair pair : iteration.gradientPairs) {
+				for (Evaluation evaluation : Arrays.asList(pair.firstGradientEvaluation,
+						pair.secondGradientEvaluation)) {
+					SimulationHandle handle = simulationEnvironment.recover(evaluation.simulationId);
+
+					if (handle.isRunning()) {
+						handle.stop();
+					}
+
+					finishEvaluation(evaluation, handle, evaluation.intermediateObjectives.get(numberOfPoints - 1));
+				}
+
+				logger.info(String.format("Gradient runs %s and %s stopped early: %s",
+						pair.firstGradientEvaluation.simulationId, pair.secondGradientEvaluation.simulationId,
+						pair.decision));
+			}
+		}
 
 		save();
+		return stable;
 	}
 
-	private boolean stopIfFinished(Evaluation evaluation, SimulationHandle handle, int iteration, int lastIteration) {
+	/**
+	 * Records intermediate objectives and finishes the evaluation once it has
+	 * reached its horizon. The stopping rules are only applied if requested,
+	 * which is the case for objective evaluations only: all gradient runs of an
+	 * iteration need to end at the same iteration, see stopStableGradients.
+	 */
+	private boolean stopIfFinished(Evaluation evaluation, SimulationHandle handle, int iteration, int lastIteration,
+			boolean applyStoppingRules)
+			throws JsonGenerationException, JsonMappingException, FileSystemException, IOException {
+		int numberOfIterations = getNumberOfIterations(evaluation);
+
 		if (handle.isRunning()) {
-			for (int intermediateIteration = 0; intermediateIteration <= numberOfSimulationIterations; intermediateIteration += intermediateObjectiveInterval) {
+			for (int intermediateIteration = 0; intermediateIteration <= numberOfIterations; intermediateIteration += intermediateObjectiveInterval) {
 				if (intermediateIteration < iteration
 						&& intermediateIteration > evaluation.lastIntermediateObjectiveIteration) {
 					evaluation.intermediateObjectives
@@ -178,16 +408,44 @@ public class SPSAEnvironment {
 				}
 			}
 
-			if (iteration > numberOfSimulationIterations) {
-				handle.stop();
-				evaluation.objective = objective.getObjective(handle);
-				handle.clearIterations();
+			String stopReason = null;
+
+			if (applyStoppingRules && iteration <= numberOfIterations) {
+				stopReason = handle.stopIfConverged(options.stoppingRules);
+			}
+
+			if (iteration > numberOfIterations || stopReason != null) {
+				if (stopReason == null) {
+					handle.stop();
+				} else {
+					evaluation.stopReason = stopReason;
+					logger.info(String.format("Simulation %s stopped at iteration %d: %s", handle.getId(), iteration,
+							stopReason));
+				}
+
+				finishEvaluation(evaluation, handle, objective.getObjective(handle));
 				return true;
 			} else {
 				return false;
 			}
 		} else {
-			if (lastIteration <= numberOfSimulationIterations) {
+			if (evaluation.objective != null) {
+				// Already evaluated, e.g. after stopping early
+				return true;
+			}
+
+			// Runs that have thrown are not scored, even if they have reached the horizon
+			if (lastIteration <= numberOfIterations || handle.hasFailed()) {
+				if (evaluation.retries < options.maximumNumberOfRetries) {
+					evaluation.retries++;
+					int resumeIteration = handle.resume(options.configPath);
+					save();
+
+					logger.warn(String.format("Simulation %s died before finishing, resumed from iteration %d (retry %d of %d)",
+							handle.getId(), resumeIteration, evaluation.retries, options.maximumNumberOfRetries));
+					return false;
+				}
+
 				throw new IllegalStateException("Simulation died before finishing");
 			}
 
@@ -195,20 +453,22 @@ public class SPSAEnvironment {
 		}
 	}
 
-	private boolean updateIterations(int objectiveIteration, int firstGradientIteration, int secondGradientIteration)
+	private boolean updateIterations(List<Evaluation> evaluations, int[] iterations)
 			throws JsonGenerationException, JsonMappingException, FileSystemException, IOException {
-		if ((objectiveIteration > state.lastObjectiveIteration)
-				|| (firstGradientIteration > state.lastFirstGradientIteration)
-				|| (secondGradientIteration > state.lastSecondGradientIteration)) {
-			state.lastObjectiveIteration = objectiveIteration;
-			state.lastFirstGradientIteration = firstGradientIteration;
-			state.lastSecondGradientIteration = secondGradientIteration;
-			save();
+		boolean updated = false;
 
-			return true;
+		for (int i = 0; i < evaluations.size(); i++) {
+			if (iterations[i] > evaluations.get(i).lastIteration) {
+				evaluations.get(i).lastIteration = iterations[i];
+				updated = true;
+			}
 		}
 
-		return false;
+		if (updated) {
+			save();
+		}
+
+		return updated;
 	}
 
 	private List<Double> buildNextCandidate(SPSAIteration iteration) {
@@ -217,12 +477,19 @@ public class SPSAEnvironment {
 		double a = sequence.getGradientFactor(n);
 		double c = sequence.getPerturbationFactor(n);
 
+		// The estimates of all perturbation pairs are averaged
 		List<Double> gradient = new LinkedList<>();
-		double nominator = iteration.firstGradientEvaluation.objective - iteration.secondGradientEvaluation.objective;
 
 		for (int i = 0; i < numberOfDimensions; i++) {
-			double denominator = 2.0 * c * iteration.perturbation.get(i);
-			gradient.add(nominator / denominator);
+			double sum = 0.0;
+
+			for (GradientPair pair : iteration.gradientPairs) {
+				double nominator = pair.firstGradientEvaluation.objective - pair.secondGradientEvaluation.objective;
+				double denominator = 2.0 * c * pair.perturbation.get(i);
+				sum += nominator / denominator;
+			}
+
+			gradient.add(sum / iteration.gradientPairs.size());
 		}
 
 		List<Double> candidate = new LinkedList<>();
@@ -246,42 +513,114 @@ public class SPSAEnvironment {
 		return projectionCandidate;
 	}
 
-	public void update() throws JsonGenerationException, JsonMappingException, FileSystemException, IOException {
+	/**
+	 * Checks the running evaluations and advances the calibration. Returns whether
+	 * the state has changed, i.e. whether there has been progress.
+	 */
+	public boolean update() throws JsonGenerationException, JsonMappingException, FileSystemException, IOException {
+		changed = false;
+
 		if (state.iterations.size() == 0) {
 			startIteration(initialCandidate);
 		} else {
 			SPSAIteration spsaIteration = state.iterations.get(state.iterations.size() - 1);
 
-			SimulationHandle objectiveHandle = simulationEnvironment
-					.recover(spsaIteration.objectiveEvaluation.simulationId);
-			SimulationHandle firstGradientHandle = simulationEnvironment
-					.recover(spsaIteration.firstGradientEvaluation.simulationId);
-			SimulationHandle secondGradientHandle = simulationEnvironment
-					.recover(spsaIteration.secondGradientEvaluation.simulationId);
+			List<Evaluation> evaluations = spsaIteration.getEvaluations();
+			List<SimulationHandle> handles = new LinkedList<>();
+			int[] iterations = new int[evaluations.size()];
 
-			int objectiveIteration = objectiveHandle.getIteration();
-			int firstGradientIteration = firstGradientHandle.getIteration();
-			int secondGradientIteration = secondGradientHandle.getIteration();
+			for (int i = 0; i < evaluations.size(); i++) {
+				handles.add(simulationEnvironment.recover(evaluations.get(i).simulationId));
+				iterations[i] = handles.get(i).getIteration();
+			}
 
 			boolean iterationFinished = true;
 
-			iterationFinished &= stopIfFinished(spsaIteration.objectiveEvaluation, objectiveHandle, objectiveIteration,
-					state.lastObjectiveIteration);
-			iterationFinished &= stopIfFinished(spsaIteration.firstGradientEvaluation, firstGradientHandle,
-					firstGradientIteration, state.lastFirstGradientIteration);
-			iterationFinished &= stopIfFinished(spsaIteration.secondGradientEvaluation, secondGradientHandle,
-					secondGradientIteration, state.lastSecondGradientIteration);
+			for (int i = 0; i < evaluations.size(); i++) {
+				boolean evaluationFinished = stopIfFinished(evaluations.get(i), handles.get(i), iterations[i],
+						evaluations.get(i).lastIteration, i == 0);
+
+				// The objective evaluation (index 0) is not needed for the next candidate
+				if (i > 0 || !options.pipelineObjectives) {
+					iterationFinished &= evaluationFinished;
+				}
+			}
+
+			if (stopStableGradients(spsaIteration)) {
+				iterationFinished = true;
+
+				for (int i = options.pipelineObjectives ? 1 : 0; i < evaluations.size(); i++) {
+					iterationFinished &= evaluations.get(i).objective != null;
+				}
+			}
+
+			updatePendingObjectives();
 
 			if (iterationFinished) {
 				logger.info("Iteration " + (state.iterations.size() + 1) + " has finished:");
-				logger.info("  - Candidate objective: " + spsaIteration.objectiveEvaluation.objective);
-				logger.info("  - First gradient objective: " + spsaIteration.firstGradientEvaluation.objective);
-				logger.info("  - Second gradient objective: " + spsaIteration.secondGradientEvaluation.objective);
+				logger.info("  - Candidate objective: " + (spsaIteration.objectiveEvaluation.objective == null
+						? "pending" : spsaIteration.objectiveEvaluation.objective));
+
+				for (GradientPair pair : spsaIteration.gradientPairs) {
+					logger.info("  - Gradient objectives: " + pair.firstGradientEvaluation.objective + " / "
+							+ pair.secondGradientEvaluation.objective);
+				}
 
 				startIteration(buildNextCandidate(spsaIteration));
-			} else if (updateIterations(objectiveIteration, firstGradientIteration, secondGradientIteration)) {
-				logger.info(String.format("Iteration %d running. [Objective: %d , 1st Gradient: %d , 2nd Gradient: %d]",
-						state.iterations.size(), objectiveIteration, firstGradientIteration, secondGradientIteration));
+			} else if (updateIterations(evaluations, iterations)) {
+				logger.info(String.format("Iteration %d running. [Objective: %d , Gradients: %s]",
+						state.iterations.size(), iterations[0],
+						Arrays.toString(Arrays.copyOfRange(iterations, 1, iterations.length))));
+			}
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Returns the handles of all evaluations that have not finished yet.
+	 */
+	public List<SimulationHandle> getActiveHandles() {
+		List<SimulationHandle> handles = new LinkedList<>();
+
+		for (int n = 0; n < state.iterations.size(); n++) {
+			List<Evaluation> evaluations = n == state.iterations.size() - 1 ? state.iterations.get(n).getEvaluations()
+					: Arrays.asList(state.iterations.get(n).objectiveEvaluation);
+
+			for (Evaluation evaluation : evaluations) {
+				if (evaluation.objective == null && simulationEnvironment.exists(evaluation.simulationId)) {
+					handles.add(simulationEnvironment.recover(evaluation.simulationId));
+				}
+			}
+		}
+
+		return handles;
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * Follows the objective evaluations of earlier iterations that are still
+	 * running in pipelined mode.
+	 */
+	private void updatePendingObjectives()
+			throws JsonGenerationException, JsonMappingException, FileSystemException, IOException {
+		for (int n = 0; n < state.iterations.size() - 1; n++) {
+			Evaluation evaluation = state.iterations.get(n).objectiveEvaluation;
+
+			if (evaluation.objective == null) {
+				SimulationHandle handle = simulationEnvironment.recover(evaluation.simulationId);
+				int iteration = handle.getIteration();
+
+				if (stopIfFinished(evaluation, handle, iteration, evaluation.lastIteration, true)) {
+					logger.info("Objective of iteration " + (n + 1) + " has finished: " + evaluation.objective);
+					save();
+				} else if (iteration > evaluation.lastIteration) {
+					evaluation.lastIteration = iteration;
+					save();
+				}
 			}
 		}
 	}
@@ -293,22 +632,76 @@ public class SPSAEnvironment {
 
 		public List<Double> intermediateObjectives = new LinkedList<>();
 		public int lastIntermediateObjectiveIteration = -1;
+
+		public int retries = 0;
+		public String stopReason = null;
+		public int lastIteration = -1;
+
+		public List<Double> candidate = null;
+		public String warmStartId = null;
+		public Integer numberOfIterations = null;
 	}
 
-	private static class SPSAIteration {
-		public List<Double> candidate;
+	private static class GradientPair {
 		public List<Double> perturbation;
 
 		public Evaluation firstGradientEvaluation;
 		public Evaluation secondGradientEvaluation;
+
+		// Last check of the gradient rule, the decision is null until it fires
+		public List<Double> intermediateDifferences = null;
+		public String decision = null;
+	}
+
+	private static class SPSAIteration {
+		public List<Double> candidate;
 		public Evaluation objectiveEvaluation;
+		public List<GradientPair> gradientPairs = new LinkedList<>();
+
+		/**
+		 * Returns the objective evaluation followed by the gradient evaluations.
+		 */
+		@JsonIgnore
+		public List<Evaluation> getEvaluations() {
+			List<Evaluation> evaluations = new LinkedList<>();
+			evaluations.add(objectiveEvaluation);
+
+			for (GradientPair pair : gradientPairs) {
+				evaluations.add(pair.firstGradientEvaluation);
+				evaluations.add(pair.secondGradientEvaluation);
+			}
+
+			return evaluations;
+		}
+
+		// State files written with a single perturbation per iteration
+
+		@JsonSetter("perturbation")
+		private void setLegacyPerturbation(List<Double> perturbation) {
+			getLegacyPair().perturbation = perturbation;
+		}
+
+		@JsonSetter("firstGradientEvaluation")
+		private void setLegacyFirstGradientEvaluation(Evaluation evaluation) {
+			getLegacyPair().firstGradientEvaluation = evaluation;
+		}
+
+		@JsonSetter("secondGradientEvaluation")
+		private void setLegacySecondGradientEvaluation(Evaluation evaluation) {
+			getLegacyPair().secondGradientEvaluation = evaluation;
+		}
+
+		private GradientPair getLegacyPair() {
+			if (gradientPairs.isEmpty()) {
+				gradientPairs.add(new GradientPair());
+			}
+
+			return gradientPairs.get(0);
+		}
 	}
 
+	@JsonIgnoreProperties({ "lastObjectiveIteration", "lastFirstGradientIteration", "lastSecondGradientIteration" })
 	private static class State {
 		public List<SPSAIteration> iterations = new LinkedList<>();
-
-		public int lastObjectiveIteration;
-		public int lastFirstGradientIteration;
-		public int lastSecondGradientIteration;
 	}
 }
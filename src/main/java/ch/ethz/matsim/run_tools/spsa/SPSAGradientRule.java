@@ -0,0 +1,14 @@
+package ch.ethz.matsim.run_tools.spsa;
+
+import java.util.List;
+
+@FunctionalInterface
+public interface SPSAGradientRule {
+	/**
+	 * Decides from the differences between the intermediate objectives of the
+	 * first and the second gradient run, oldest first, whether the gradient has
+	 * settled. Returns a description of the decision including its statistics,
+	 * which is stored in the SPSA state, or null to let the runs go on.
+	 */
+	String check(List<Double> differences);
+}
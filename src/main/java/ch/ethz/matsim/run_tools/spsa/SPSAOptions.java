@@ -0,0 +1,45 @@
+package ch.ethz.matsim.run_tools.spsa;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import ch.ethz.matsim.run_tools.framework.simulation.StoppingRule;
+
+public class SPSAOptions {
+	// How often a simulation that dies before finishing is resumed before the
+	// calibration is aborted
+	public int maximumNumberOfRetries = 0;
+
+	// Number of perturbation pairs per iteration. All pairs are simulated at the
+	// same time and their gradient estimates are averaged.
+	public int numberOfPerturbations = 1;
+
+	// Start the next iteration as soon as the gradient evaluations have finished.
+	// Objective evaluations then keep running in the background and their results
+	// are filled in later. A lower priority for them can be set in
+	// SimulationConfigurator.configureRunner.
+	public boolean pipelineObjectives = false;
+
+	// Start evaluations from the plans of the closest finished evaluation of the
+	// previous iteration. Requires a WarmStartDescriptionFactory. Warm-started
+	// evaluations are stopped after numberOfWarmStartIterations, if set.
+	public boolean warmStart = false;
+	public Integer numberOfWarmStartIterations = null;
+
+	// Stops all gradient runs of an iteration at a common iteration once the
+	// differences of the intermediate objectives have stabilised for every pair,
+	// see StableDifferenceRule
+	public SPSAGradientRule gradientRule = null;
+
+	// Simulations of an iteration are configured on this many threads. More than
+	// one requires a thread-safe SimulationConfigurator.
+	public int numberOfSetupThreads = 1;
+
+	// MATSim config in the run directory, which is changed to resume a simulation
+	public String configPath = "config.xml";
+
+	// Objective evaluations are stopped before numberOfSimulationIterations as
+	// soon as one of these rules fires. Gradient runs are not affected, as both
+	// runs of a pair need to end at the same iteration; see gradientRule instead.
+	public List<StoppingRule> stoppingRules = new LinkedList<>();
+}
@@ -0,0 +1,56 @@
+package ch.ethz.matsim.run_tools.spsa;
+
+import java.util.List;
+
+/**
+ * Considers a gradient settled once the last differences between the gradient
+ * objectives all have the same sign and their range, relative to the mean
+ * magnitude, does not exceed a tolerance.
+ */
+public class StableDifferenceRule implements SPSAGradientRule {
+	final private int window;
+	final private double tolerance;
+
+	public StableDifferenceRule(int window, double tolerance) {
+		if (window < 2) {
+			throw new IllegalArgumentException("The window must contain at least two differences");
+		}
+
+		this.window = window;
+		this.tolerance = tolerance;
+	}
+
+	@Override
+	public String check(List<Double> differences) {
+		if (differences.size() < window) {
+			return null;
+		}
+
+		List<Double> recent = differences.subList(differences.size() - window, differences.size());
+
+		double minimum = Double.POSITIVE_INFINITY;
+		double maximum = Double.NEGATIVE_INFINITY;
+		double sum = 0.0;
+
+		for (double difference : recent) {
+			minimum = Math.min(minimum, difference);
+			maximum = Math.max(maximum, difference);
+			sum += difference;
+		}
+
+		if (!(minimum > 0.0 || maximum < 0.0)) {
+			// No consistent sign, or no difference at all
+			return null;
+		}
+
+		double mean = sum / window;
+		double relativeRange = (maximum - minimum) / Math.abs(mean);
+
+		if (relativeRange <= tolerance) {
+			return String.format("Sign and magnitude stable over the last %d differences: mean %g, range %g, relative range %g (tolerance %g)",
+					window, mean, maximum - minimum, relativeRange, tolerance);
+		}
+
+		return null;
+	}
+}
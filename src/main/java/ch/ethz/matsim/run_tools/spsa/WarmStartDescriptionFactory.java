@@ -0,0 +1,20 @@
+package ch.ethz.matsim.run_tools.spsa;
+
+import java.util.List;
+
+import org.apache.commons.vfs2.FileObject;
+
+import ch.ethz.matsim.run_tools.framework.simulation.SimulationDescription;
+
+/**
+ * Description factory that is required for SPSAOptions.warmStart.
+ */
+public interface WarmStartDescriptionFactory extends SPSADescriptionFactory {
+	/**
+	 * Creates a description for a simulation that should start from the given
+	 * plans of an earlier evaluation instead of the initial population. The
+	 * SimulationConfigurator is expected to add them as input, e.g. with
+	 * SimulationHandle.addInput.
+	 */
+	SimulationDescription create(List<Double> candidate, FileObject warmStartPlans);
+}
@@ -0,0 +1,65 @@
+#!/bin/sh
+# Local stand-in for a SLURM-like batch system, used by
+# BatchSchedulerCommands.local. Jobs are started as detached background
+# processes, bookkeeping lives next to this script.
+#
+#   local_scheduler.sh submit [job script]   -> prints the job id
+#   local_scheduler.sh status [id,id,...]    -> prints "[id] RUNNING" per live job
+#   local_scheduler.sh cancel [id]
+#
+# Like SLURM, the bookkeeping of a job is purged once it has finished. As with
+# squeue, a status query that contains a purged (or never known) id fails with
+# "Invalid job id specified".
+
+set -e
+
+JOBS="$(cd "$(dirname "$0")" && pwd)/jobs"
+mkdir -p "$JOBS"
+
+case "$1" in
+submit)
+	# Serialise id allocation between concurrent submissions
+	exec 9> "$JOBS/.lock"
+	flock 9
+	ID=$(( $(cat "$JOBS/.counter" 2> /dev/null || echo 0) + 1 ))
+	echo "$ID" > "$JOBS/.counter"
+
+	# The job waits for the lock, so its pid file is written before it starts,
+	# and it purges its own bookkeeping when it ends
+	setsid sh -c 'flock "$3" true; sh "$1"; rm -f "$2"' sh "$2" "$JOBS/$ID.pid" "$JOBS/.lock" \
+		< /dev/null > /dev/null 2>&1 9>&- &
+	echo "$!" > "$JOBS/$ID.pid"
+	flock -u 9
+	echo "$ID"
+	;;
+status)
+	OUTPUT=""
+
+	for ID in $(echo "$2" | tr ',' ' '); do
+		if [ ! -f "$JOBS/$ID.pid" ]; then
+			echo "slurm_load_jobs error: Invalid job id specified" >&2
+			exit 1
+		fi
+
+		STATE=$(ps -o stat= -p "$(cat "$JOBS/$ID.pid")" 2> /dev/null || true)
+
+		case "$STATE" in
+		""|Z*) ;;
+		*) OUTPUT="$OUTPUT$ID RUNNING\n" ;;
+		esac
+	done
+
+	printf "$OUTPUT"
+	;;
+cancel)
+	if [ -f "$JOBS/$2.pid" ]; then
+		# The job runs in its own session, so the whole process group is stopped
+		kill -s TERM -- "-$(cat "$JOBS/$2.pid")" 2> /dev/null || true
+		rm -f "$JOBS/$2.pid"
+	fi
+	;;
+*)
+	echo "Unknown command $1" >&2
+	exit 1
+	;;
+esac
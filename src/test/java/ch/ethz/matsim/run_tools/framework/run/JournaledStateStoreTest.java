@@ -0,0 +1,71 @@
+package ch.ethz.matsim.run_tools.framework.run;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.ethz.matsim.run_tools.framework.run.LocalLinuxRunEnvironment.RunInfo;
+
+public class JournaledStateStoreTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	static private RunInfo createInfo(int pid) {
+		RunInfo info = new RunInfo();
+		info.pid = pid;
+		info.startTime = (long) pid;
+		return info;
+	}
+
+	@Test
+	public void testCompactionAcrossStores() {
+		File snapshotFile = new File(temporaryFolder.getRoot(), "state.json");
+		int minimumCompactionSize = 10;
+		int numberOfRecords = 5 * minimumCompactionSize + 3;
+
+		JournaledStateStore first = new JournaledStateStore(snapshotFile, minimumCompactionSize);
+		JournaledStateStore second = new JournaledStateStore(snapshotFile, minimumCompactionSize);
+
+		first.load();
+		second.load();
+
+		for (int i = 0; i < numberOfRecords; i++) {
+			JournaledStateStore store = i % 2 == 0 ? first : second;
+			String id = "run" + (i % 7);
+			int pid = i;
+
+			store.execute(() -> store.put(id, createInfo(pid)));
+		}
+
+		first.execute(() -> first.remove("run0"));
+
+		for (JournaledStateStore store : new JournaledStateStore[] { first, second }) {
+			Map<String, RunInfo> runs = store.transaction(() -> store.load());
+
+			assertEquals(6, runs.size());
+
+			for (int j = 1; j < 7; j++) {
+				// The last record written for run j
+				int expectedPid = numberOfRecords - 1 - ((numberOfRecords - 1 - j) % 7);
+				String id = "run" + j;
+				assertEquals(Integer.valueOf(expectedPid), store.transaction(() -> runs.get(id).pid));
+			}
+		}
+
+		// A fresh store reads the compacted snapshot plus the remaining journal
+		JournaledStateStore third = new JournaledStateStore(snapshotFile, minimumCompactionSize);
+		assertEquals(6, third.load().size());
+
+		assertTrue(snapshotFile.exists());
+
+		first.close();
+		second.close();
+		third.close();
+	}
+}
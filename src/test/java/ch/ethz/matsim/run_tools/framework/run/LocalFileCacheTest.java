@@ -0,0 +1,143 @@
+package ch.ethz.matsim.run_tools.framework.run;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.VFS;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LocalFileCacheTest {
+	final static private String REMOTE_ROOT = "ram://local_file_cache_test";
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@After
+	public void clearRemote() throws IOException {
+		VFS.getManager().resolveFile(REMOTE_ROOT).deleteAll();
+	}
+
+	static private FileObject writeRemote(String name, String content) throws IOException {
+		FileObject file = VFS.getManager().resolveFile(REMOTE_ROOT + "/" + name);
+
+		try (OutputStream outputStream = file.getContent().getOutputStream()) {
+			outputStream.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+
+		return file;
+	}
+
+	static private String read(LocalCopy copy) throws IOException {
+		try (InputStream inputStream = copy.getFile().getContent().getInputStream()) {
+			return IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+		}
+	}
+
+	static private File getLocalFile(LocalCopy copy) {
+		return new File(copy.getFile().getName().getPath());
+	}
+
+	@Test
+	public void testHitAndInvalidation() throws IOException {
+		LocalFileCache cache = new LocalFileCache(temporaryFolder.newFolder("cache"), 1024);
+		FileObject remote = writeRemote("scores.txt", "first");
+
+		File firstFile;
+
+		try (LocalCopy copy = cache.get(remote)) {
+			assertEquals("file", copy.getFile().getName().getScheme());
+			assertEquals("first", read(copy));
+			firstFile = getLocalFile(copy);
+		}
+
+		// Unchanged remote files are served from the cache
+		try (LocalCopy copy = cache.get(remote)) {
+			assertEquals(firstFile, getLocalFile(copy));
+			assertEquals("first", read(copy));
+		}
+
+		assertEquals(5, cache.getSize());
+
+		// A change of the remote file leads to a new download
+		writeRemote("scores.txt", "second version");
+
+		try (LocalCopy copy = cache.get(remote)) {
+			assertNotEquals(firstFile, getLocalFile(copy));
+			assertEquals("second version", read(copy));
+		}
+
+		assertFalse(firstFile.exists());
+		assertEquals(14, cache.getSize());
+	}
+
+	@Test
+	public void testEviction() throws IOException {
+		LocalFileCache cache = new LocalFileCache(temporaryFolder.newFolder("cache"), 10);
+
+		FileObject first = writeRemote("first.txt", "aaaaaa");
+		FileObject second = writeRemote("second.txt", "bbbbbb");
+
+		File firstFile;
+		File secondFile;
+
+		try (LocalCopy copy = cache.get(first)) {
+			firstFile = getLocalFile(copy);
+		}
+
+		try (LocalCopy copy = cache.get(second)) {
+			secondFile = getLocalFile(copy);
+		}
+
+		// The least recently used copy has been evicted to stay within 10 bytes
+		assertFalse(firstFile.exists());
+		assertTrue(secondFile.exists());
+		assertEquals(6, cache.getSize());
+	}
+
+	@Test
+	public void testCopiesInUseAreKept() throws IOException {
+		LocalFileCache cache = new LocalFileCache(temporaryFolder.newFolder("cache"), 10);
+
+		FileObject first = writeRemote("first.txt", "aaaaaa");
+		FileObject second = writeRemote("second.txt", "bbbbbb");
+
+		LocalCopy firstCopy = cache.get(first);
+		File firstFile = getLocalFile(firstCopy);
+
+		// Eviction skips the copy that is still open
+		try (LocalCopy copy = cache.get(second)) {
+			assertEquals("bbbbbb", read(copy));
+		}
+
+		assertTrue(firstFile.exists());
+		assertEquals("aaaaaa", read(firstCopy));
+
+		// A new version of the file replaces the copy that is still open, which is
+		// only deleted once it has been closed
+		writeRemote("first.txt", "cccccccc");
+
+		try (LocalCopy copy = cache.get(first)) {
+			assertEquals("cccccccc", read(copy));
+		}
+
+		assertTrue(firstFile.exists());
+		assertEquals("aaaaaa", read(firstCopy));
+
+		firstCopy.close();
+		assertFalse(firstFile.exists());
+		assertTrue(cache.getSize() <= 10);
+	}
+}
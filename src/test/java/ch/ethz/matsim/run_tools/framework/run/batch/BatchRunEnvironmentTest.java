@@ -0,0 +1,128 @@
+package ch.ethz.matsim.run_tools.framework.run.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.ethz.matsim.run_tools.framework.run.RunDescription;
+import ch.ethz.matsim.run_tools.framework.run.RunStatus;
+
+public class BatchRunEnvironmentTest {
+	final static private long TIMEOUT = 30000;
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	/**
+	 * Entry point of the test jobs: sleeps for the given number of milliseconds
+	 * and writes a marker file into the run directory.
+	 */
+	static public class SleepingJob {
+		static public void main(String[] args) throws InterruptedException, IOException {
+			Thread.sleep(Long.parseLong(args[0]));
+			Files.write(Paths.get("finished"), new byte[0]);
+		}
+	}
+
+	static private RunDescription createDescription(File rootDirectory, long duration) throws URISyntaxException {
+		// Class path entries are resolved against the root directory
+		Path classes = Paths.get(SleepingJob.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+
+		RunDescription description = new RunDescription();
+		description.classPath = Arrays.asList(rootDirectory.toPath().relativize(classes).toString());
+		description.entryPoint = SleepingJob.class.getName();
+		description.arguments = Arrays.asList(String.valueOf(duration));
+		return description;
+	}
+
+	private BatchRunEnvironment createEnvironment(File rootDirectory) throws IOException {
+		BatchSchedulerCommands commands = BatchSchedulerCommands.local(temporaryFolder.newFolder("scheduler"));
+
+		// Job states are not cached, so every query reaches the scheduler
+		return new BatchRunEnvironment("batch.json", rootDirectory, commands, 0);
+	}
+
+	static private void waitUntilFinished(BatchRunEnvironment environment, String id) throws InterruptedException {
+		long failTime = System.currentTimeMillis() + TIMEOUT;
+
+		while (environment.isRunning(id)) {
+			assertTrue("Run " + id + " did not finish in time", System.currentTimeMillis() < failTime);
+			Thread.sleep(100);
+		}
+	}
+
+	@Test
+	public void testSubmitAndFinish() throws Exception {
+		File rootDirectory = temporaryFolder.newFolder("root");
+		BatchRunEnvironment environment = createEnvironment(rootDirectory);
+
+		environment.setup("run", createDescription(rootDirectory, 0));
+		assertEquals(RunStatus.IDLE, environment.getStatuses(Arrays.asList("run")).get("run"));
+
+		environment.start("run");
+		waitUntilFinished(environment, "run");
+
+		// The job has run to its end and its id has been purged by the scheduler
+		assertTrue(new File(rootDirectory, "run/finished").exists());
+		assertEquals(RunStatus.IDLE, environment.getStatuses(Arrays.asList("run")).get("run"));
+	}
+
+	@Test
+	public void testPurgedJobsAmongRunningOnes() throws Exception {
+		File rootDirectory = temporaryFolder.newFolder("root");
+		BatchRunEnvironment environment = createEnvironment(rootDirectory);
+
+		environment.setup("short", createDescription(rootDirectory, 0));
+		environment.setup("long", createDescription(rootDirectory, TIMEOUT));
+
+		environment.start("long");
+		environment.start("short");
+
+		// The status query for both jobs fails once the short one has been purged,
+		// but the long one is still found when the jobs are queried one by one
+		waitUntilFinished(environment, "short");
+
+		Map<String, RunStatus> statuses = environment.getStatuses(Arrays.asList("short", "long"));
+		assertEquals(RunStatus.IDLE, statuses.get("short"));
+		assertEquals(RunStatus.RUNNING, statuses.get("long"));
+
+		environment.stop("long");
+		assertFalse(environment.isRunning("long"));
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		File rootDirectory = temporaryFolder.newFolder("root");
+		BatchRunEnvironment environment = createEnvironment(rootDirectory);
+
+		environment.setup("run", createDescription(rootDirectory, 2000));
+		environment.start("run");
+		assertTrue(environment.isRunning("run"));
+
+		environment.stop("run");
+		assertFalse(environment.isRunning("run"));
+		assertEquals(RunStatus.IDLE, environment.getStatuses(Arrays.asList("run")).get("run"));
+
+		// The job has been killed before it could finish
+		Thread.sleep(3000);
+		assertFalse(new File(rootDirectory, "run/finished").exists());
+
+		// A cancelled run can be submitted again
+		environment.start("run");
+		waitUntilFinished(environment, "run");
+		assertTrue(new File(rootDirectory, "run/finished").exists());
+	}
+}
@@ -0,0 +1,193 @@
+package ch.ethz.matsim.run_tools.framework.run.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.vfs2.FileObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.ethz.matsim.run_tools.framework.run.RunDescription;
+import ch.ethz.matsim.run_tools.framework.run.RunEnvironment;
+import ch.ethz.matsim.run_tools.framework.run.RunStatus;
+import ch.ethz.matsim.run_tools.framework.run.remote.AgentMessages.Request;
+
+public class RemoteRunEnvironmentTest {
+	final static private String SECRET = "secret";
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	final private List<RunAgent> agents = new LinkedList<>();
+	final private List<InMemoryRunEnvironment> environments = new LinkedList<>();
+	final private List<RemoteNode> nodes = new LinkedList<>();
+
+	/**
+	 * Keeps the state of the runs in memory instead of starting processes. The
+	 * statuses are queried through the default of RunEnvironment.
+	 */
+	static private class InMemoryRunEnvironment implements RunEnvironment {
+		final private Map<String, RunStatus> statuses = new HashMap<>();
+
+		@Override
+		synchronized public void start(String id) {
+			statuses.put(id, RunStatus.RUNNING);
+		}
+
+		@Override
+		synchronized public void stop(String id) {
+			statuses.put(id, RunStatus.IDLE);
+		}
+
+		@Override
+		synchronized public void setup(String id, RunDescription description) {
+			statuses.put(id, RunStatus.IDLE);
+		}
+
+		@Override
+		synchronized public void remove(String id) {
+			statuses.remove(id);
+		}
+
+		@Override
+		synchronized public boolean isRunning(String id) {
+			return RunStatus.RUNNING.equals(statuses.get(id));
+		}
+
+		@Override
+		synchronized public boolean exists(String id) {
+			return statuses.containsKey(id);
+		}
+
+		@Override
+		public FileObject getRootDirectory() {
+			return null;
+		}
+
+		@Override
+		public FileObject getRunDirectory(String id) {
+			return null;
+		}
+
+		@Override
+		synchronized public Collection<String> getAvailableIds() {
+			return new LinkedList<>(statuses.keySet());
+		}
+	}
+
+	@Before
+	public void startAgents() throws IOException {
+		for (String name : Arrays.asList("node1", "node2")) {
+			// Ephemeral port on the loopback interface
+			ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			InMemoryRunEnvironment environment = new InMemoryRunEnvironment();
+			RunAgent agent = new RunAgent(environment, serverSocket, SECRET);
+
+			Thread thread = new Thread(agent::run);
+			thread.setDaemon(true);
+			thread.start();
+
+			RemoteNode node = new RemoteNode();
+			node.name = name;
+			node.host = InetAddress.getLoopbackAddress().getHostAddress();
+			node.port = serverSocket.getLocalPort();
+			node.secret = SECRET;
+
+			agents.add(agent);
+			environments.add(environment);
+			nodes.add(node);
+		}
+	}
+
+	@After
+	public void stopAgents() throws IOException {
+		for (RunAgent agent : agents) {
+			agent.close();
+		}
+	}
+
+	@Test
+	public void testLifecycle() {
+		RemoteRunEnvironment environment = new RemoteRunEnvironment("remote.json", temporaryFolder.getRoot(), nodes);
+		List<String> ids = Arrays.asList("run0", "run1", "run2", "run3");
+
+		for (String id : ids) {
+			environment.setup(id, new RunDescription());
+		}
+
+		// Runs are spread evenly over both nodes
+		for (InMemoryRunEnvironment nodeEnvironment : environments) {
+			assertEquals(2, nodeEnvironment.getAvailableIds().size());
+		}
+
+		for (String id : ids) {
+			assertTrue(environment.exists(id));
+			assertFalse(environment.isRunning(id));
+			environment.start(id);
+		}
+
+		Map<String, RunStatus> statuses = environment.getStatuses(Arrays.asList("run0", "run1", "run2", "run3", "unknown"));
+		assertEquals(5, statuses.size());
+		assertEquals(RunStatus.MISSING, statuses.get("unknown"));
+
+		for (String id : ids) {
+			assertEquals(RunStatus.RUNNING, statuses.get(id));
+			assertTrue(environment.isRunning(id));
+		}
+
+		environment.stop("run1");
+		assertFalse(environment.isRunning("run1"));
+		assertEquals(RunStatus.IDLE, environment.getStatuses(Arrays.asList("run1")).get("run1"));
+
+		environment.remove("run1");
+		assertFalse(environment.exists("run1"));
+		assertEquals(3, environment.getAvailableIds().size());
+
+		// The placement is persisted, so a new coordinator finds the runs again
+		RemoteRunEnvironment restored = new RemoteRunEnvironment("remote.json", temporaryFolder.getRoot(), nodes);
+		assertEquals(3, restored.getAvailableIds().size());
+		assertTrue(restored.isRunning("run2"));
+	}
+
+	@Test
+	public void testWrongSecretIsRejected() {
+		for (RemoteNode node : nodes) {
+			RemoteNode intruder = new RemoteNode();
+			intruder.name = node.name;
+			intruder.host = node.host;
+			intruder.port = node.port;
+			intruder.secret = "wrong";
+
+			Request request = new Request();
+			request.command = AgentMessages.SETUP;
+			request.id = "intrusion";
+			request.description = new RunDescription();
+
+			try {
+				new RunAgentClient(intruder).request(request);
+				fail("The request should have been rejected");
+			} catch (IllegalStateException e) {
+				assertTrue(e.getMessage().contains("not authorized"));
+			}
+		}
+
+		for (InMemoryRunEnvironment environment : environments) {
+			assertTrue(environment.getAvailableIds().isEmpty());
+		}
+	}
+}